@@ -1,4 +1,69 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 public class Main {
     /**
@@ -14,8 +79,45 @@ public class Main {
     public static void main(String[] args) {
         Main main = new Main();  // kludge to make everything non-static available for static main()
 
+        // choosing mode of work
+        LaunchOptions options;
+        try {
+            options = LaunchOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            main.reportFatalError(e.getMessage());
+            return;
+        }
+        if (options.getBenchmarkFilter() != null) {
+            main.runBenchmarks(options.getBenchmarkFilter());
+            return;
+        }
+        if (options.isSelfCheck()) {
+            main.runSelfCheck();
+            return;
+        }
+        if (options.getConvertPath() != null) {
+            main.runConversion(options.getConvertPath());
+            return;
+        }
+        if (options.getBinaryPath() != null) {
+            main.runBinary(options);
+            return;
+        }
+        if (options.getBatchPath() != null) {
+            main.runBatch(options);
+            return;
+        }
+        if (options.getServerPort() >= 0) {
+            main.runServer(options);
+            return;
+        }
+        if (options.isStreaming()) {
+            main.runStreaming(options);
+            return;
+        }
+
         // array of different implementations of calculator
-        Calculator[] calculators = {new IntegerCalculator(), new DoubleCalculator(), new StringCalculator()};
+        Calculator[] calculators = createCalculators(options);
 
         // reading type of calculator
         CalculatorType calculatorType = main.readCalculator();
@@ -42,6 +144,157 @@ public class Main {
 
     }
 
+    /**
+     * Creates implementations of calculator.
+     *
+     * @param options command line options
+     * @return array of calculators, indexed by CalculatorType ordinal
+     */
+    private static Calculator[] createCalculators(LaunchOptions options) {
+        Calculator integerCalculator = options.isAdaptive() ? new AdaptiveIntegerCalculator()
+                : new IntegerCalculator();
+        return new Calculator[] {
+            integerCalculator, new DoubleCalculator(), new StringCalculator(), new BigIntegerCalculator(),
+            new DecimalCalculator(options.getScale(), options.getRounding()),
+        };
+    }
+
+    /**
+     * Evaluates unlimited amount of commands from console with buffered input and output.
+     *
+     * @param options command line options
+     */
+    private void runStreaming(LaunchOptions options) {
+        Calculator[] calculators = createCalculators(options);
+        CalculatorMetrics metrics = options.getMetricsPath() != null ? new CalculatorMetrics() : null;
+        if (metrics != null) {  // every calculator is measured, metrics can be read through JMX while session runs
+            for (int i = 0; i < calculators.length; i++) {
+                calculators[i] = new MeteredCalculator(calculators[i], CalculatorType.values()[i], metrics);
+            }
+            try {
+                metrics.register();
+            } catch (JMException e) {
+                System.err.println("Metrics are not available through JMX: " + e.getMessage());
+            }
+        }
+        ForkJoinPool pool = options.getThreads() > 0 ? new ForkJoinPool(options.getThreads()) : null;
+        ResultCache cache = options.getCacheSize() > 0
+                ? new ResultCache(options.getCacheSize(), ResultCache.DEFAULT_MAX_LENGTH) : null;
+        CommandReader reader = new CommandReader(System.in, CommandReader.DEFAULT_CAPACITY);
+        ResultWriter writer = new ResultWriter(System.out, ResultWriter.DEFAULT_CAPACITY);
+        try {
+            if (options.hasRegisters()) {
+                new RegisterSession(calculators, reader, writer, pool).run();
+            } else {
+                new StreamSession(calculators, reader, writer, pool, cache).run();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        if (cache != null) {  // statistics go to stderr, so that they do not mix with results
+            System.err.println("Cache hits: " + cache.getHits() + ", misses: " + cache.getMisses());
+        }
+        if (metrics != null) {
+            try {
+                Files.write(Paths.get(options.getMetricsPath()), metrics.snapshot().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Serves calculator sessions over loopback TCP connections until the process is stopped.
+     *
+     * @param options command line options
+     */
+    private void runServer(LaunchOptions options) {
+        ResultCache cache = options.getCacheSize() > 0
+                ? new ResultCache(options.getCacheSize(), ResultCache.DEFAULT_MAX_LENGTH) : null;
+        try (ServerSocket serverSocket = new ServerSocket(options.getServerPort(), CalculatorServer.BACKLOG,
+                InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on port " + serverSocket.getLocalPort());
+            new CalculatorServer(createCalculators(options), cache).serve(serverSocket);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs benchmarks and prints their results to console.
+     *
+     * @param filter part of benchmark name, empty string to run everything
+     */
+    private void runBenchmarks(String filter) {
+        try {
+            new CalculatorBenchmark(System.out).run(filter);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs differential checks of fast paths against the standard library, exits with status 1 on mismatches.
+     */
+    private void runSelfCheck() {
+        if (new NumberLexerCheck(System.out).run() > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Converts commands from console in text format into binary command file.
+     *
+     * @param path path of binary file
+     */
+    private void runConversion(String path) {
+        try {
+            BinaryCommandFormat.convert(new CommandReader(System.in, CommandReader.DEFAULT_CAPACITY), Paths.get(path));
+        } catch (IllegalArgumentException e) {
+            reportFatalError(e.getMessage());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Evaluates commands of binary command file.
+     *
+     * @param options command line options
+     */
+    private void runBinary(LaunchOptions options) {
+        try (MappedCommandInput input = new MappedCommandInput(Paths.get(options.getBinaryPath()))) {
+            new BinarySession(createCalculators(options), input,
+                    new ResultWriter(System.out, ResultWriter.DEFAULT_CAPACITY)).run();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Evaluates every input file of batch in one JVM, results are written next to inputs.
+     *
+     * @param options command line options
+     */
+    private void runBatch(LaunchOptions options) {
+        ResultCache cache = options.getCacheSize() > 0
+                ? new ResultCache(options.getCacheSize(), ResultCache.DEFAULT_MAX_LENGTH) : null;
+        int workers = options.getThreads() > 0 ? options.getThreads() : Runtime.getRuntime().availableProcessors();
+        try {
+            List<BatchRunner.Input> inputs = BatchRunner.listInputs(Paths.get(options.getBatchPath()));
+            int failed = new BatchRunner(createCalculators(options), cache, options.hasRegisters(), workers)
+                    .run(inputs, System.err);
+            // summary goes to stderr, as failures do
+            System.err.println("Files: " + inputs.size() + ", failed: " + failed);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Reads input and returns CalculatorType.
      *
@@ -49,13 +302,7 @@ public class Main {
      */
     private CalculatorType readCalculator() {
         String line = scanner.nextLine().replace("\n", "");
-        for (CalculatorType calculator : CalculatorType.values()) {
-            if (line.equals(calculator.toString())) {  // hit calculator type
-                return calculator;
-            }
-        }
-        // no such calculator type
-        return CalculatorType.INCORRECT;
+        return CalculatorType.parse(line);
     }
 
     /**
@@ -99,16 +346,7 @@ public class Main {
      * @return type of operation
      */
     private OperationType parseOperation(String operation) {
-        if (operation.length() != 1) {  // all operations must be 1 char long
-            return OperationType.INCORRECT;
-        }
-        for (OperationType operationType : OperationType.values()) {
-            if (operation.charAt(0) == operationType.getRepresentativeSymbol()) {  // hit operation type
-                return operationType;
-            }
-        }
-        // miss operation type
-        return OperationType.INCORRECT;
+        return OperationType.parse(operation, 0, operation.length());
     }
 }
 
@@ -128,10 +366,34 @@ enum CalculatorType {
      * STRING indicates that StringCalculator should be used.
      */
     STRING,
+    /**
+     * BIG_INTEGER indicates that BigIntegerCalculator should be used.
+     */
+    BIG_INTEGER,
+    /**
+     * DECIMAL indicates that DecimalCalculator should be used.
+     */
+    DECIMAL,
     /**
      * INCORRECT indicates unexpected datatype.
      */
-    INCORRECT
+    INCORRECT;
+
+    /**
+     * Determines type of calculator by its name.
+     *
+     * @param name header line from input
+     * @return type of calculator, INCORRECT if there is no such type
+     */
+    static CalculatorType parse(String name) {
+        for (CalculatorType calculator : values()) {
+            if (name.equals(calculator.toString())) {  // hit calculator type
+                return calculator;
+            }
+        }
+        // no such calculator type
+        return INCORRECT;
+    }
 }
 
 /**
@@ -146,6 +408,16 @@ enum OperationType {
         String eval(Calculator calc, String a, String b) {
             return calc.add(a, b);
         }
+
+        @Override
+        CalculationResult eval(IntegerCalculator calc, int a, int b, CalculationResult result) {
+            return calc.add(a, b, result);
+        }
+
+        @Override
+        CalculationResult eval(DoubleCalculator calc, double a, double b, CalculationResult result) {
+            return calc.add(a, b, result);
+        }
     },
     /**
      * SUBTRACTION indicates that subtraction operation should be used.
@@ -155,6 +427,16 @@ enum OperationType {
         String eval(Calculator calc, String a, String b) {
             return calc.subtract(a, b);
         }
+
+        @Override
+        CalculationResult eval(IntegerCalculator calc, int a, int b, CalculationResult result) {
+            return calc.subtract(a, b, result);
+        }
+
+        @Override
+        CalculationResult eval(DoubleCalculator calc, double a, double b, CalculationResult result) {
+            return calc.subtract(a, b, result);
+        }
     },
     /**
      * MULTIPLICATION indicates that multiplication operation should be used.
@@ -164,6 +446,16 @@ enum OperationType {
         String eval(Calculator calc, String a, String b) {
             return calc.multiply(a, b);
         }
+
+        @Override
+        CalculationResult eval(IntegerCalculator calc, int a, int b, CalculationResult result) {
+            return calc.multiply(a, b, result);
+        }
+
+        @Override
+        CalculationResult eval(DoubleCalculator calc, double a, double b, CalculationResult result) {
+            return calc.multiply(a, b, result);
+        }
     },
     /**
      * DIVISION indicates that division operation should be used.
@@ -173,6 +465,16 @@ enum OperationType {
         String eval(Calculator calc, String a, String b) {
             return calc.divide(a, b);
         }
+
+        @Override
+        CalculationResult eval(IntegerCalculator calc, int a, int b, CalculationResult result) {
+            return calc.divide(a, b, result);
+        }
+
+        @Override
+        CalculationResult eval(DoubleCalculator calc, double a, double b, CalculationResult result) {
+            return calc.divide(a, b, result);
+        }
     },
     /**
      * INCORRECT indicates unexpected operation type.
@@ -180,12 +482,27 @@ enum OperationType {
     INCORRECT('!') {
         @Override
         String eval(Calculator calc, String a, String b) {
-            return "Wrong operation type";
+            return CalculationError.WRONG_OPERATION.getMessage();
+        }
+
+        @Override
+        CalculationResult eval(IntegerCalculator calc, int a, int b, CalculationResult result) {
+            return result.setError(CalculationError.WRONG_OPERATION);
+        }
+
+        @Override
+        CalculationResult eval(DoubleCalculator calc, double a, double b, CalculationResult result) {
+            return result.setError(CalculationError.WRONG_OPERATION);
         }
     };
 
     abstract String eval(Calculator calc, String a, String b);  // eval function to execute corresponding operation
 
+    // same as eval above, but for numbers that are already parsed, result is stored into reusable object
+    abstract CalculationResult eval(IntegerCalculator calc, int a, int b, CalculationResult result);
+
+    abstract CalculationResult eval(DoubleCalculator calc, double a, double b, CalculationResult result);
+
     /**
      * Contains symbol that is associated with operation in an input command.
      * getter: getRepresentativeSymbol()
@@ -204,211 +521,7068 @@ enum OperationType {
     OperationType(char symbol) {
         representativeSymbol = symbol;
     }
+
+    /**
+     * Determines type of operation by its symbol.
+     *
+     * @param text sequence containing operation
+     * @param from index of the first char of operation
+     * @param to   index after the last char of operation
+     * @return type of operation, INCORRECT if there is no such operation
+     */
+    static OperationType parse(CharSequence text, int from, int to) {
+        if (to - from != 1) {  // all operations must be 1 char long
+            return INCORRECT;
+        }
+        char symbol = text.charAt(from);
+        for (OperationType operationType : values()) {
+            if (symbol == operationType.getRepresentativeSymbol()) {  // hit operation type
+                return operationType;
+            }
+        }
+        // miss operation type
+        return INCORRECT;
+    }
 }
 
 /**
- * Abstract calculator.
+ * Indicates type of aggregate that reduces any amount of operands into one result.
  */
-abstract class Calculator {
+enum AggregateType {
     /**
-     * @param a string, 1st argument
-     * @param b string, 2nd argument
-     * @return a + b
+     * SUM indicates that operands should be added.
      */
-    public abstract String add(String a, String b);
+    SUM("sum"),
+    /**
+     * PRODUCT indicates that operands should be multiplied.
+     */
+    PRODUCT("prod"),
+    /**
+     * MIN indicates that the least operand should be chosen.
+     */
+    MIN("min"),
+    /**
+     * MAX indicates that the greatest operand should be chosen.
+     */
+    MAX("max"),
+    /**
+     * MEAN indicates that sum of operands should be divided by their amount.
+     */
+    MEAN("mean");
 
     /**
-     * @param a string, 1st argument
-     * @param b string, 2nd argument
-     * @return a - b
+     * Name of aggregate in an input command.
+     * getter: getKeyword()
      */
-    public abstract String subtract(String a, String b);
+    private final String keyword;
 
     /**
-     * @param a string, 1st argument
-     * @param b string, 2nd argument
-     * @return a * b
+     * Getter for keyword.
+     *
+     * @return keyword
      */
-    public abstract String multiply(String a, String b);
+    public String getKeyword() {
+        return keyword;
+    }
+
+    AggregateType(String name) {
+        keyword = name;
+    }
 
     /**
-     * @param a string, 1st argument
-     * @param b string, 2nd argument
-     * @return a / b
+     * Determines aggregate by its name.
+     *
+     * @param text sequence containing aggregate
+     * @param from index of the first char of aggregate
+     * @param to   index after the last char of aggregate
+     * @return aggregate, null if there is no such aggregate
      */
-    public abstract String divide(String a, String b);
+    static AggregateType parse(CharSequence text, int from, int to) {
+        for (AggregateType aggregateType : values()) {
+            String name = aggregateType.getKeyword();
+            if (name.length() != to - from) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length() && name.charAt(i) == text.charAt(from + i)) {
+                i++;
+            }
+            if (i == name.length()) {
+                return aggregateType;
+            }
+        }
+        return null;
+    }
 }
 
 /**
- * Implementation of calculator for integers.
+ * Indicates error that happened during evaluation of command.
  */
-class IntegerCalculator extends Calculator {
+enum CalculationError {
+    /**
+     * WRONG_ARGUMENT indicates that operand can not be parsed by calculator.
+     */
+    WRONG_ARGUMENT("Wrong argument type"),
+    /**
+     * DIVISION_BY_ZERO indicates that divisor is zero.
+     */
+    DIVISION_BY_ZERO("Division by zero"),
+    /**
+     * UNSUPPORTED_OPERATION indicates that calculator does not support operation.
+     */
+    UNSUPPORTED_OPERATION("Unsupported operation for strings"),
+    /**
+     * WRONG_OPERATION indicates unexpected operation type.
+     */
+    WRONG_OPERATION("Wrong operation type");
+
+    /**
+     * Text that is printed instead of result.
+     * getter: getMessage()
+     */
+    private final String message;
+
     /**
-     * Checks if argument is a valid integer.
+     * Getter for message.
      *
-     * @param a input argument
-     * @return boolean
+     * @return message
      */
-    private boolean checkArgument(String a) {
-        boolean isCorrect = true;
-        for (int i = 0; i < a.length() && isCorrect; i++) {
-            char c = a.charAt(i);
-            if (!(('0' <= c && c <= '9') || c == '-')) {
-                isCorrect = false;
-            }
-        }
-        return isCorrect;
+    public String getMessage() {
+        return message;
     }
 
-    @Override
-    public String add(String a, String b) {
-        if (!checkArgument(a) || !checkArgument(b)) {
-            return "Wrong argument type";
-        }
-        int c1 = Integer.parseInt(a);
-        int c2 = Integer.parseInt(b);
-        return String.valueOf(c1 + c2);
+    CalculationError(String text) {
+        message = text;
     }
 
-    @Override
-    public String subtract(String a, String b) {
-        if (!checkArgument(a) || !checkArgument(b)) {
-            return "Wrong argument type";
-        }
-        int c1 = Integer.parseInt(a);
-        int c2 = Integer.parseInt(b);
-        return String.valueOf(c1 - c2);
-    }
+    /**
+     * Code that means absence of error in arrays of codes.
+     */
+    static final byte NO_ERROR_CODE = 0;
 
-    @Override
-    public String multiply(String a, String b) {
-        if (!checkArgument(a) || !checkArgument(b)) {
-            return "Wrong argument type";
-        }
-        int c1 = Integer.parseInt(a);
-        int c2 = Integer.parseInt(b);
-        return String.valueOf(c1 * c2);
+    /**
+     * Getter for compact code of error, used in arrays of codes.
+     *
+     * @return code, never NO_ERROR_CODE
+     */
+    public byte getCode() {
+        return (byte) (ordinal() + 1);
     }
 
-    @Override
-    public String divide(String a, String b) {
-        if (!checkArgument(a) || !checkArgument(b)) {
-            return "Wrong argument type";
-        }
-        int c1 = Integer.parseInt(a);
-        int c2 = Integer.parseInt(b);
-        if (c2 == 0) {
-            return "Division by zero";
-        } else {
-            return String.valueOf(c1 / c2);
-        }
+    /**
+     * Determines error by its compact code.
+     *
+     * @param code code of error
+     * @return error, null for NO_ERROR_CODE
+     */
+    static CalculationError fromCode(byte code) {
+        return code == NO_ERROR_CODE ? null : values()[code - 1];
     }
 }
 
 /**
- * Implementation of calculator for doubles.
+ * Result of calculation: either a number or an error.
+ * Object is mutable, so one instance can be reused for a chain of operations without allocations.
  */
-class DoubleCalculator extends Calculator {
+final class CalculationResult {
     /**
-     * Checks if argument is a valid double.
-     *
-     * @param a input argument
-     * @return boolean
+     * Indicates which field holds the result.
      */
-    private boolean checkArgument(String a) {
-        boolean isCorrect = true;
-        for (int i = 0; i < a.length() && isCorrect; i++) {
-            char c = a.charAt(i);
-            if (!(('0' <= c && c <= '9') || c == '-' || c == '.')) {
-                isCorrect = false;
-                break;
-            }
-        }
-        return isCorrect;
+    enum Kind {
+        /**
+         * INTEGER indicates that result is stored in longValue.
+         */
+        INTEGER,
+        /**
+         * REAL indicates that result is stored in doubleValue.
+         */
+        REAL,
+        /**
+         * BIG_INTEGER indicates that result is stored in bigValue.
+         */
+        BIG_INTEGER,
+        /**
+         * DECIMAL indicates that result is stored in longValue, or in bigValue if it does not fit,
+         * multiplied by 10^scale.
+         */
+        DECIMAL,
+        /**
+         * TEXT indicates that result is stored in text.
+         */
+        TEXT,
+        /**
+         * ERROR indicates that result is stored in error.
+         */
+        ERROR
     }
 
-    @Override
-    public String add(String a, String b) {
-        if (!checkArgument(a) || !checkArgument(b)) {
-            return "Wrong argument type";
-        }
-        double c1 = Double.parseDouble(a);
-        double c2 = Double.parseDouble(b);
-        return String.valueOf(c1 + c2);
+    /**
+     * Kind of stored result.
+     */
+    private Kind kind = Kind.INTEGER;
+    /**
+     * Integer result.
+     */
+    private long longValue = 0;
+    /**
+     * Floating point result.
+     */
+    private double doubleValue = 0;
+    /**
+     * Arbitrary-precision integer result.
+     */
+    private BigInteger bigValue = null;
+    /**
+     * Amount of digits after the point of decimal result.
+     */
+    private int scale = 0;
+    /**
+     * Text result.
+     */
+    private CharSequence text = null;
+    /**
+     * Error, null if there was no error.
+     */
+    private CalculationError error = null;
+
+    /**
+     * @param value integer result
+     * @return this
+     */
+    public CalculationResult setLong(long value) {
+        kind = Kind.INTEGER;
+        longValue = value;
+        error = null;
+        return this;
     }
 
-    @Override
-    public String subtract(String a, String b) {
-        if (!checkArgument(a) || !checkArgument(b)) {
-            return "Wrong argument type";
-        }
-        double c1 = Double.parseDouble(a);
-        double c2 = Double.parseDouble(b);
-        return String.valueOf(c1 - c2);
+    /**
+     * @param value floating point result
+     * @return this
+     */
+    public CalculationResult setDouble(double value) {
+        kind = Kind.REAL;
+        doubleValue = value;
+        error = null;
+        return this;
     }
 
-    @Override
-    public String multiply(String a, String b) {
-        if (!checkArgument(a) || !checkArgument(b)) {
-            return "Wrong argument type";
-        }
-        double c1 = Double.parseDouble(a);
-        double c2 = Double.parseDouble(b);
-        return String.valueOf(c1 * c2);
+    /**
+     * @param value arbitrary-precision integer result
+     * @return this
+     */
+    public CalculationResult setBigInteger(BigInteger value) {
+        kind = Kind.BIG_INTEGER;
+        bigValue = value;
+        error = null;
+        return this;
     }
 
-    @Override
-    public String divide(String a, String b) {
-        if (!checkArgument(a) || !checkArgument(b)) {
-            return "Wrong argument type";
-        }
-        double c1 = Double.parseDouble(a);
-        double c2 = Double.parseDouble(b);
-        if (c2 == 0) {
-            return "Division by zero";
-        } else {
-            return String.valueOf(c1 / c2);
+    /**
+     * @param unscaled     decimal result multiplied by 10^decimalScale
+     * @param decimalScale amount of digits after the point
+     * @return this
+     */
+    public CalculationResult setDecimal(long unscaled, int decimalScale) {
+        kind = Kind.DECIMAL;
+        longValue = unscaled;
+        bigValue = null;
+        scale = decimalScale;
+        error = null;
+        return this;
+    }
+
+    /**
+     * @param value decimal result, it is stored as long if it fits
+     * @return this
+     */
+    public CalculationResult setDecimal(BigDecimal value) {
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() < Long.SIZE) {
+            return setDecimal(unscaled.longValue(), value.scale());
         }
+        kind = Kind.DECIMAL;
+        bigValue = unscaled;
+        scale = value.scale();
+        error = null;
+        return this;
+    }
+
+    /**
+     * @param value text result
+     * @return this
+     */
+    public CalculationResult setText(CharSequence value) {
+        kind = Kind.TEXT;
+        text = value;
+        error = null;
+        return this;
+    }
+
+    /**
+     * @param calculationError error that happened
+     * @return this
+     */
+    public CalculationResult setError(CalculationError calculationError) {
+        kind = Kind.ERROR;
+        error = calculationError;
+        return this;
+    }
+
+    /**
+     * @return true if decimal result does not fit into long
+     */
+    public boolean isWideDecimal() {
+        return kind == Kind.DECIMAL && bigValue != null;
+    }
+
+    /**
+     * @return decimal result
+     */
+    public BigDecimal getDecimal() {
+        return bigValue != null ? new BigDecimal(bigValue, scale) : BigDecimal.valueOf(longValue, scale);
+    }
+
+    /**
+     * @return amount of digits after the point of decimal result
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * @return kind of stored result
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Copies result of another object.
+     *
+     * @param other result to copy
+     * @return this
+     */
+    public CalculationResult set(CalculationResult other) {
+        kind = other.kind;
+        longValue = other.longValue;
+        doubleValue = other.doubleValue;
+        bigValue = other.bigValue;
+        scale = other.scale;
+        text = other.text;
+        error = other.error;
+        return this;
+    }
+
+    /**
+     * @return true if result is an error
+     */
+    public boolean isError() {
+        return kind == Kind.ERROR;
+    }
+
+    /**
+     * @return error, null if there was no error
+     */
+    public CalculationError getError() {
+        return error;
+    }
+
+    /**
+     * @return integer result
+     */
+    public long getLong() {
+        return longValue;
+    }
+
+    /**
+     * @return integer result truncated to int
+     */
+    public int getInt() {
+        return (int) longValue;
+    }
+
+    /**
+     * @return floating point result
+     */
+    public double getDouble() {
+        return doubleValue;
+    }
+
+    /**
+     * @return arbitrary-precision integer result
+     */
+    public BigInteger getBigInteger() {
+        return bigValue;
+    }
+
+    /**
+     * @return text result
+     */
+    public CharSequence getText() {
+        return text;
+    }
+
+    /**
+     * @return result in the same format as it is printed
+     */
+    @Override
+    public String toString() {
+        switch (kind) {
+            case INTEGER:
+                return String.valueOf(longValue);
+            case REAL:
+                return String.valueOf(doubleValue);
+            case BIG_INTEGER:
+                return bigValue.toString();
+            case DECIMAL:
+                return getDecimal().toPlainString();
+            case TEXT:
+                return text.toString();
+            default:
+                return error.getMessage();
+        }
+    }
+}
+
+/**
+ * Abstract calculator.
+ */
+abstract class Calculator {
+    /**
+     * @param a string, 1st argument
+     * @param b string, 2nd argument
+     * @return a + b
+     */
+    public abstract String add(String a, String b);
+
+    /**
+     * @param a string, 1st argument
+     * @param b string, 2nd argument
+     * @return a - b
+     */
+    public abstract String subtract(String a, String b);
+
+    /**
+     * @param a string, 1st argument
+     * @param b string, 2nd argument
+     * @return a * b
+     */
+    public abstract String multiply(String a, String b);
+
+    /**
+     * @param a string, 1st argument
+     * @param b string, 2nd argument
+     * @return a / b
+     */
+    public abstract String divide(String a, String b);
+
+    /**
+     * Evaluates operation on operands given as windows of char sequences, e.g. of input line.
+     *
+     * @param operation operation to evaluate
+     * @param a         sequence with 1st argument
+     * @param aFrom     index of the first char of 1st argument
+     * @param aTo       index after the last char of 1st argument
+     * @param b         sequence with 2nd argument
+     * @param bFrom     index of the first char of 2nd argument
+     * @param bTo       index after the last char of 2nd argument
+     * @param result    storage for result
+     * @return result
+     */
+    public CalculationResult evaluate(OperationType operation, CharSequence a, int aFrom, int aTo,
+                                      CharSequence b, int bFrom, int bTo, CalculationResult result) {
+        return result.setText(operation.eval(this, a.subSequence(aFrom, aTo).toString(),
+                b.subSequence(bFrom, bTo).toString()));
+    }
+
+    /**
+     * Evaluates operation on operands that are either text, e.g. literals of command, or results of previous
+     * commands. By default results are evaluated through their text, which is built only here, so calculators
+     * override it to take values as they are.
+     *
+     * @param operation operation to evaluate
+     * @param a         1st argument, of TEXT kind if it is a literal
+     * @param b         2nd argument, of TEXT kind if it is a literal
+     * @param result    storage for result, not the same object as arguments
+     * @return result, with WRONG_ARGUMENT error if text of argument is too long for String
+     */
+    public CalculationResult evaluate(OperationType operation, CalculationResult a, CalculationResult b,
+                                      CalculationResult result) {
+        String textA = textOf(a);
+        String textB = textOf(b);
+        if (textA == null || textB == null) {
+            return result.setError(CalculationError.WRONG_ARGUMENT);
+        }
+        return evaluate(operation, textA, 0, textA.length(), textB, 0, textB.length(), result);
+    }
+
+    /**
+     * @param operand argument without error
+     * @return text of argument as it is printed, null if it is too long for String
+     */
+    static String textOf(CalculationResult operand) {
+        if (operand.getKind() == CalculationResult.Kind.TEXT) {
+            return StringCalculator.fitsIntoString(operand.getText()) ? operand.getText().toString() : null;
+        }
+        return operand.toString();
+    }
+}
+
+/**
+ * Calculator for numbers, operands are validated and parsed in one pass by NumberLexer.
+ * String methods are adapters over evaluate().
+ */
+abstract class NumericCalculator extends Calculator {
+    @Override
+    public abstract CalculationResult evaluate(OperationType operation, CharSequence a, int aFrom, int aTo,
+                                               CharSequence b, int bFrom, int bTo, CalculationResult result);
+
+    /**
+     * Evaluates operation on whole strings.
+     *
+     * @param operation operation to evaluate
+     * @param a         string, 1st argument
+     * @param b         string, 2nd argument
+     * @return result or error message
+     */
+    private String evaluate(OperationType operation, String a, String b) {
+        return evaluate(operation, a, 0, a.length(), b, 0, b.length(), new CalculationResult()).toString();
     }
-}
 
-/**
- * Implementation of calculator for strings.
- */
-class StringCalculator extends Calculator {
     @Override
     public String add(String a, String b) {
-        return a + b;
+        return evaluate(OperationType.ADDITION, a, b);
     }
 
     @Override
     public String subtract(String a, String b) {
-        return "Unsupported operation for strings";
+        return evaluate(OperationType.SUBTRACTION, a, b);
     }
 
     @Override
     public String multiply(String a, String b) {
-        // checking if 2nd argument is positive integer
-        boolean isCorrect = true;
-        for (int i = 0; i < b.length() && isCorrect; i++) {
-            char c = b.charAt(i);
-            if (!('0' <= c && c <= '9')) {
-                isCorrect = false;
+        return evaluate(OperationType.MULTIPLICATION, a, b);
+    }
+
+    @Override
+    public String divide(String a, String b) {
+        return evaluate(OperationType.DIVISION, a, b);
+    }
+}
+
+/**
+ * Implementation of calculator for integers.
+ */
+class IntegerCalculator extends NumericCalculator {
+    @Override
+    public CalculationResult evaluate(OperationType operation, CharSequence a, int aFrom, int aTo,
+                                      CharSequence b, int bFrom, int bTo, CalculationResult result) {
+        if (operation == OperationType.INCORRECT) {  // arguments do not matter
+            return operation.eval(this, 0, 0, result);
+        }
+        if (!NumberLexer.parseInt(a, aFrom, aTo, result)) {
+            return result;
+        }
+        int c1 = result.getInt();
+        if (!NumberLexer.parseInt(b, bFrom, bTo, result)) {
+            return result;
+        }
+        return operation.eval(this, c1, result.getInt(), result);
+    }
+
+    @Override
+    public CalculationResult evaluate(OperationType operation, CalculationResult a, CalculationResult b,
+                                      CalculationResult result) {
+        if (operation == OperationType.INCORRECT) {
+            return operation.eval(this, 0, 0, result);
+        }
+        if (!toInt(a, result)) {
+            return result;
+        }
+        int c1 = result.getInt();
+        if (!toInt(b, result)) {
+            return result;
+        }
+        return operation.eval(this, c1, result.getInt(), result);
+    }
+
+    /**
+     * @param operand argument, integer result is taken as it is, text is parsed
+     * @param result  storage for argument, or for WRONG_ARGUMENT error
+     * @return true if argument is valid
+     */
+    private static boolean toInt(CalculationResult operand, CalculationResult result) {
+        if (operand.getKind() == CalculationResult.Kind.INTEGER && operand.getInt() == operand.getLong()) {
+            result.setLong(operand.getLong());
+            return true;
+        }
+        String text = textOf(operand);
+        if (text == null) {
+            result.setError(CalculationError.WRONG_ARGUMENT);
+            return false;
+        }
+        return NumberLexer.parseInt(text, 0, text.length(), result);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a + b, overflowed as int
+     */
+    public CalculationResult add(int a, int b, CalculationResult result) {
+        return result.setLong(a + b);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a - b, overflowed as int
+     */
+    public CalculationResult subtract(int a, int b, CalculationResult result) {
+        return result.setLong(a - b);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a * b, overflowed as int
+     */
+    public CalculationResult multiply(int a, int b, CalculationResult result) {
+        return result.setLong(a * b);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a / b rounded towards zero, or with error if b is zero
+     */
+    public CalculationResult divide(int a, int b, CalculationResult result) {
+        if (b == 0) {
+            return result.setError(CalculationError.DIVISION_BY_ZERO);
+        }
+        return result.setLong(a / b);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a + b, overflowed as long
+     */
+    public CalculationResult add(long a, long b, CalculationResult result) {
+        return result.setLong(a + b);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a - b, overflowed as long
+     */
+    public CalculationResult subtract(long a, long b, CalculationResult result) {
+        return result.setLong(a - b);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a * b, overflowed as long
+     */
+    public CalculationResult multiply(long a, long b, CalculationResult result) {
+        return result.setLong(a * b);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a / b rounded towards zero, or with error if b is zero
+     */
+    public CalculationResult divide(long a, long b, CalculationResult result) {
+        if (b == 0) {
+            return result.setError(CalculationError.DIVISION_BY_ZERO);
+        }
+        return result.setLong(a / b);
+    }
+
+    /**
+     * Evaluates commands stored as columns, the same as evaluateColumns() with a new ColumnarBatch.
+     *
+     * @param operations ordinals of OperationType for every command
+     * @param a          1st arguments
+     * @param b          2nd arguments
+     * @param results    storage for results, 0 for commands with errors
+     * @param errors     storage for codes of errors, CalculationError.NO_ERROR_CODE if there was no error
+     */
+    public void evaluateColumns(byte[] operations, int[] a, int[] b, int[] results, byte[] errors) {
+        evaluateColumns(new ColumnarBatch(), operations, a, b, results, errors);
+    }
+
+    /**
+     * Evaluates commands stored as columns. Commands are grouped by operation and every group is
+     * evaluated by a tight loop over primitive arrays, which JIT compiles into SIMD instructions.
+     * Result of every command is the same as of eval() with this calculator.
+     *
+     * @param batch      reusable storage for grouping, so that repeated calls do not allocate
+     * @param operations ordinals of OperationType for every command
+     * @param a          1st arguments
+     * @param b          2nd arguments
+     * @param results    storage for results, 0 for commands with errors
+     * @param errors     storage for codes of errors, CalculationError.NO_ERROR_CODE if there was no error
+     */
+    public void evaluateColumns(ColumnarBatch batch, byte[] operations, int[] a, int[] b, int[] results,
+                                byte[] errors) {
+        batch.group(operations, errors);
+        int[] left = batch.getIntScratch(0);
+        int[] right = batch.getIntScratch(1);
+        int[] out = batch.getIntScratch(2);
+        for (OperationType operation : ColumnarBatch.ARITHMETIC_OPERATIONS) {
+            int length = batch.getGroupSize(operation);
+            if (length == 0) {
+                continue;
+            }
+            batch.gather(operation, a, left);
+            batch.gather(operation, b, right);
+            switch (operation) {
+                case ADDITION:
+                    for (int i = 0; i < length; i++) {
+                        out[i] = left[i] + right[i];
+                    }
+                    break;
+                case SUBTRACTION:
+                    for (int i = 0; i < length; i++) {
+                        out[i] = left[i] - right[i];
+                    }
+                    break;
+                case MULTIPLICATION:
+                    for (int i = 0; i < length; i++) {
+                        out[i] = left[i] * right[i];
+                    }
+                    break;
+                default:  // division, zero divisors are reported per command
+                    for (int i = 0; i < length; i++) {
+                        out[i] = right[i] == 0 ? 0 : left[i] / right[i];
+                    }
+                    batch.reportZeros(operation, right, CalculationError.DIVISION_BY_ZERO);
             }
+            batch.scatter(operation, out, results);
         }
-        if (!isCorrect) {
-            return "Wrong argument type";
+    }
+}
+
+/**
+ * Implementation of calculator for doubles.
+ */
+class DoubleCalculator extends NumericCalculator {
+    @Override
+    public CalculationResult evaluate(OperationType operation, CharSequence a, int aFrom, int aTo,
+                                      CharSequence b, int bFrom, int bTo, CalculationResult result) {
+        if (operation == OperationType.INCORRECT) {  // arguments do not matter
+            return operation.eval(this, 0, 0, result);
         }
-        int repeatCnt = Integer.parseInt(b);
-        StringBuilder res = new StringBuilder();
-        for (int i = 0; i < repeatCnt; i++) {
-            res.append(a);
+        if (!NumberLexer.parseDouble(a, aFrom, aTo, result)) {
+            return result;
         }
-        return res.toString();
+        double c1 = result.getDouble();
+        if (!NumberLexer.parseDouble(b, bFrom, bTo, result)) {
+            return result;
+        }
+        return operation.eval(this, c1, result.getDouble(), result);
     }
 
+    /**
+     * Results are taken as doubles, as their text may be in exponent notation, Infinity or NaN,
+     * which NumberLexer rejects.
+     */
     @Override
-    public String divide(String a, String b) {
-        return "Unsupported operation for strings";
+    public CalculationResult evaluate(OperationType operation, CalculationResult a, CalculationResult b,
+                                      CalculationResult result) {
+        if (operation == OperationType.INCORRECT) {
+            return operation.eval(this, 0, 0, result);
+        }
+        if (!toDouble(a, result)) {
+            return result;
+        }
+        double c1 = result.getDouble();
+        if (!toDouble(b, result)) {
+            return result;
+        }
+        return operation.eval(this, c1, result.getDouble(), result);
+    }
+
+    /**
+     * @param operand argument, floating point result is taken as it is, text is parsed
+     * @param result  storage for argument, or for WRONG_ARGUMENT error
+     * @return true if argument is valid
+     */
+    private static boolean toDouble(CalculationResult operand, CalculationResult result) {
+        if (operand.getKind() == CalculationResult.Kind.REAL) {
+            result.setDouble(operand.getDouble());
+            return true;
+        }
+        String text = textOf(operand);
+        if (text == null) {
+            result.setError(CalculationError.WRONG_ARGUMENT);
+            return false;
+        }
+        return NumberLexer.parseDouble(text, 0, text.length(), result);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a + b
+     */
+    public CalculationResult add(double a, double b, CalculationResult result) {
+        return result.setDouble(a + b);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a - b
+     */
+    public CalculationResult subtract(double a, double b, CalculationResult result) {
+        return result.setDouble(a - b);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a * b
+     */
+    public CalculationResult multiply(double a, double b, CalculationResult result) {
+        return result.setDouble(a * b);
+    }
+
+    /**
+     * @param a      1st argument
+     * @param b      2nd argument
+     * @param result storage for result
+     * @return result with a / b, or with error if b is zero
+     */
+    public CalculationResult divide(double a, double b, CalculationResult result) {
+        if (b == 0) {
+            return result.setError(CalculationError.DIVISION_BY_ZERO);
+        }
+        return result.setDouble(a / b);
+    }
+
+    /**
+     * Evaluates commands stored as columns, the same as evaluateColumns() with a new ColumnarBatch.
+     *
+     * @param operations ordinals of OperationType for every command
+     * @param a          1st arguments
+     * @param b          2nd arguments
+     * @param results    storage for results, 0 for commands with errors
+     * @param errors     storage for codes of errors, CalculationError.NO_ERROR_CODE if there was no error
+     */
+    public void evaluateColumns(byte[] operations, double[] a, double[] b, double[] results, byte[] errors) {
+        evaluateColumns(new ColumnarBatch(), operations, a, b, results, errors);
+    }
+
+    /**
+     * Evaluates commands stored as columns. Commands are grouped by operation and every group is
+     * evaluated by a tight loop over primitive arrays, which JIT compiles into SIMD instructions.
+     * Result of every command is the same as of eval() with this calculator.
+     *
+     * @param batch      reusable storage for grouping, so that repeated calls do not allocate
+     * @param operations ordinals of OperationType for every command
+     * @param a          1st arguments
+     * @param b          2nd arguments
+     * @param results    storage for results, 0 for commands with errors
+     * @param errors     storage for codes of errors, CalculationError.NO_ERROR_CODE if there was no error
+     */
+    public void evaluateColumns(ColumnarBatch batch, byte[] operations, double[] a, double[] b, double[] results,
+                                byte[] errors) {
+        batch.group(operations, errors);
+        double[] left = batch.getDoubleScratch(0);
+        double[] right = batch.getDoubleScratch(1);
+        double[] out = batch.getDoubleScratch(2);
+        for (OperationType operation : ColumnarBatch.ARITHMETIC_OPERATIONS) {
+            int length = batch.getGroupSize(operation);
+            if (length == 0) {
+                continue;
+            }
+            batch.gather(operation, a, left);
+            batch.gather(operation, b, right);
+            switch (operation) {
+                case ADDITION:
+                    for (int i = 0; i < length; i++) {
+                        out[i] = left[i] + right[i];
+                    }
+                    break;
+                case SUBTRACTION:
+                    for (int i = 0; i < length; i++) {
+                        out[i] = left[i] - right[i];
+                    }
+                    break;
+                case MULTIPLICATION:
+                    for (int i = 0; i < length; i++) {
+                        out[i] = left[i] * right[i];
+                    }
+                    break;
+                default:  // division, zero divisors are reported per command
+                    for (int i = 0; i < length; i++) {
+                        out[i] = right[i] == 0 ? 0 : left[i] / right[i];
+                    }
+                    batch.reportZeros(operation, right, CalculationError.DIVISION_BY_ZERO);
+            }
+            batch.scatter(operation, out, results);
+        }
+    }
+}
+
+/**
+ * Implementation of calculator for integers of arbitrary size.
+ * BigInteger multiplies and divides big numbers with sub-quadratic algorithms (Karatsuba, Toom-Cook,
+ * Burnikel-Ziegler) and prints them by recursive division, so only parsing needs a faster algorithm here.
+ */
+class BigIntegerCalculator extends NumericCalculator {
+    /**
+     * Numbers up to this amount of digits are parsed by BigInteger constructor.
+     */
+    private static final int PARSE_BLOCK_DIGITS = 2048;
+    /**
+     * Halves of numbers longer than this amount of digits are parsed in parallel.
+     */
+    private static final int PARALLEL_PARSE_DIGITS = 1 << 17;
+
+    /**
+     * powersOfTen[j] is 10^(PARSE_BLOCK_DIGITS * 2^j), grows on demand.
+     */
+    private static volatile BigInteger[] powersOfTen = {BigInteger.TEN.pow(PARSE_BLOCK_DIGITS)};
+
+    @Override
+    public CalculationResult evaluate(OperationType operation, CharSequence a, int aFrom, int aTo,
+                                      CharSequence b, int bFrom, int bTo, CalculationResult result) {
+        if (operation == OperationType.INCORRECT) {  // arguments do not matter
+            return result.setError(CalculationError.WRONG_OPERATION);
+        }
+        if (!NumberLexer.checkBigInteger(a, aFrom, aTo, result)
+                || !NumberLexer.checkBigInteger(b, bFrom, bTo, result)) {
+            return result;
+        }
+        return evaluate(operation, parse(a, aFrom, aTo), parse(b, bFrom, bTo), result);
+    }
+
+    /**
+     * Results are taken as they are, so long numbers are not printed and parsed again.
+     */
+    @Override
+    public CalculationResult evaluate(OperationType operation, CalculationResult a, CalculationResult b,
+                                      CalculationResult result) {
+        if (operation == OperationType.INCORRECT) {
+            return result.setError(CalculationError.WRONG_OPERATION);
+        }
+        BigInteger c1 = toBigInteger(a, result);
+        BigInteger c2 = c1 != null ? toBigInteger(b, result) : null;
+        if (c2 == null) {
+            return result;
+        }
+        return evaluate(operation, c1, c2, result);
+    }
+
+    /**
+     * @param operand argument, arbitrary-precision result is taken as it is, text is parsed
+     * @param result  storage for WRONG_ARGUMENT error
+     * @return argument, null if it is invalid
+     */
+    private static BigInteger toBigInteger(CalculationResult operand, CalculationResult result) {
+        if (operand.getKind() == CalculationResult.Kind.BIG_INTEGER) {
+            return operand.getBigInteger();
+        }
+        String text = textOf(operand);
+        if (text == null) {
+            result.setError(CalculationError.WRONG_ARGUMENT);
+            return null;
+        }
+        return NumberLexer.checkBigInteger(text, 0, text.length(), result) ? parse(text, 0, text.length()) : null;
+    }
+
+    /**
+     * Evaluates arithmetic operation on parsed numbers.
+     *
+     * @param operation arithmetic operation
+     * @param c1        1st argument
+     * @param c2        2nd argument
+     * @param result    storage for result
+     * @return result
+     */
+    static CalculationResult evaluate(OperationType operation, BigInteger c1, BigInteger c2,
+                                      CalculationResult result) {
+        switch (operation) {
+            case ADDITION:
+                return result.setBigInteger(c1.add(c2));
+            case SUBTRACTION:
+                return result.setBigInteger(c1.subtract(c2));
+            case MULTIPLICATION:
+                return result.setBigInteger(c1.multiply(c2));
+            default:
+                if (c2.signum() == 0) {
+                    return result.setError(CalculationError.DIVISION_BY_ZERO);
+                }
+                return result.setBigInteger(c1.divide(c2));  // rounded towards zero, as for int
+        }
+    }
+
+    /**
+     * Parses valid integer. BigInteger constructor takes quadratic time, so long numbers are split into halves,
+     * parsed recursively and joined by multiplication with cached power of ten.
+     *
+     * @param text sequence with number in format "-?[0-9]+"
+     * @param from index of the first char of number
+     * @param to   index after the last char of number
+     * @return parsed number
+     */
+    static BigInteger parse(CharSequence text, int from, int to) {
+        if (text.charAt(from) == '-') {
+            return parse(text, from + 1, to).negate();
+        }
+        if (to - from <= PARSE_BLOCK_DIGITS) {
+            return new BigInteger(text.subSequence(from, to).toString());
+        }
+        if (to - from > PARALLEL_PARSE_DIGITS) {
+            return new ParseTask(text, from, to).invoke();
+        }
+        int level = splitLevel(to - from);
+        int split = to - (PARSE_BLOCK_DIGITS << level);
+        return parse(text, from, split).multiply(powerOfTen(level)).add(parse(text, split, to));
+    }
+
+    /**
+     * @param digits amount of digits in number, more than PARSE_BLOCK_DIGITS
+     * @return the biggest level such that lower part of PARSE_BLOCK_DIGITS * 2^level digits is shorter than number
+     */
+    private static int splitLevel(int digits) {
+        int level = 0;
+        while ((long) PARSE_BLOCK_DIGITS << (level + 1) < digits) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * @param level level of power
+     * @return 10^(PARSE_BLOCK_DIGITS * 2^level)
+     */
+    private static BigInteger powerOfTen(int level) {
+        BigInteger[] powers = powersOfTen;
+        if (level < powers.length) {
+            return powers[level];
+        }
+        synchronized (BigIntegerCalculator.class) {
+            powers = powersOfTen;
+            if (level >= powers.length) {
+                int length = powers.length;
+                powers = Arrays.copyOf(powers, level + 1);
+                for (int i = length; i <= level; i++) {
+                    powers[i] = powers[i - 1].multiply(powers[i - 1]);
+                }
+                powersOfTen = powers;
+            }
+            return powers[level];
+        }
+    }
+
+    /**
+     * Parses halves of long number in parallel.
+     */
+    private static final class ParseTask extends RecursiveTask<BigInteger> {
+        /**
+         * Version of serialized form, tasks are never serialized.
+         */
+        private static final long serialVersionUID = 1L;
+        /**
+         * Sequence with number.
+         */
+        private final CharSequence text;
+        /**
+         * Index of the first digit.
+         */
+        private final int from;
+        /**
+         * Index after the last digit.
+         */
+        private final int to;
+
+        ParseTask(CharSequence sequence, int fromIndex, int toIndex) {
+            this.text = sequence;
+            this.from = fromIndex;
+            this.to = toIndex;
+        }
+
+        @Override
+        protected BigInteger compute() {
+            if (to - from <= PARALLEL_PARSE_DIGITS) {
+                return parse(text, from, to);
+            }
+            int level = splitLevel(to - from);
+            int split = to - (PARSE_BLOCK_DIGITS << level);
+            ParseTask high = new ParseTask(text, from, split);
+            high.fork();
+            BigInteger low = new ParseTask(text, split, to).compute();
+            return high.join().multiply(powerOfTen(level)).add(low);
+        }
+    }
+}
+
+/**
+ * Implementation of calculator for integers of any size. Operands and results that fit into long are
+ * computed with overflow checks, only the rest are computed with BigInteger.
+ */
+class AdaptiveIntegerCalculator extends NumericCalculator {
+    @Override
+    public CalculationResult evaluate(OperationType operation, CharSequence a, int aFrom, int aTo,
+                                      CharSequence b, int bFrom, int bTo, CalculationResult result) {
+        if (operation == OperationType.INCORRECT) {  // arguments do not matter
+            return result.setError(CalculationError.WRONG_OPERATION);
+        }
+        if (NumberLexer.parseLong(a, aFrom, aTo, result)) {
+            long c1 = result.getLong();
+            if (NumberLexer.parseLong(b, bFrom, bTo, result)) {
+                return evaluate(operation, c1, result.getLong(), result);
+            }
+        }
+        // operand is invalid or does not fit into long
+        if (!NumberLexer.checkBigInteger(a, aFrom, aTo, result)
+                || !NumberLexer.checkBigInteger(b, bFrom, bTo, result)) {
+            return result;
+        }
+        return narrow(BigIntegerCalculator.evaluate(operation, BigIntegerCalculator.parse(a, aFrom, aTo),
+                BigIntegerCalculator.parse(b, bFrom, bTo), result));
+    }
+
+    /**
+     * Evaluates operation on longs, result is promoted to BigInteger on overflow.
+     *
+     * @param operation arithmetic operation
+     * @param a         1st argument
+     * @param b         2nd argument
+     * @param result    storage for result
+     * @return result
+     */
+    public CalculationResult evaluate(OperationType operation, long a, long b, CalculationResult result) {
+        long value;
+        switch (operation) {
+            case ADDITION:
+                value = a + b;
+                if (((a ^ value) & (b ^ value)) < 0) {  // sign of result differs from signs of both arguments
+                    return result.setBigInteger(BigInteger.valueOf(a).add(BigInteger.valueOf(b)));
+                }
+                return result.setLong(value);
+            case SUBTRACTION:
+                value = a - b;
+                if (((a ^ b) & (a ^ value)) < 0) {
+                    return result.setBigInteger(BigInteger.valueOf(a).subtract(BigInteger.valueOf(b)));
+                }
+                return result.setLong(value);
+            case MULTIPLICATION:
+                value = a * b;
+                if (Math.multiplyHigh(a, b) != value >> 63) {  // higher half is not a sign extension
+                    return result.setBigInteger(BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)));
+                }
+                return result.setLong(value);
+            default:
+                if (b == 0) {
+                    return result.setError(CalculationError.DIVISION_BY_ZERO);
+                }
+                if (a == Long.MIN_VALUE && b == -1) {  // the only overflow of division
+                    return result.setBigInteger(BigInteger.valueOf(a).negate());
+                }
+                return result.setLong(a / b);
+        }
+    }
+
+    /**
+     * Moves result back to long if it fits, so that next operations on it stay on the fast path.
+     *
+     * @param result result of calculation
+     * @return result
+     */
+    static CalculationResult narrow(CalculationResult result) {
+        if (result.getKind() == CalculationResult.Kind.BIG_INTEGER && result.getBigInteger().bitLength() < Long.SIZE) {
+            return result.setLong(result.getBigInteger().longValue());
+        }
+        return result;
+    }
+}
+
+/**
+ * Implementation of calculator for fixed-point decimals, e.g. money. Numbers are stored as long values
+ * scaled by 10^scale, so results have no binary rounding artefacts. Operands and results are rounded to
+ * scale digits after the point with the given rounding mode; BigDecimal is used only when scaled value
+ * does not fit into long. Results are the same as of BigDecimal with the same scale and rounding.
+ */
+class DecimalCalculator extends NumericCalculator {
+    /**
+     * Default amount of digits after the point.
+     */
+    static final int DEFAULT_SCALE = 2;
+    /**
+     * Default rounding mode.
+     */
+    static final RoundingMode DEFAULT_ROUNDING = RoundingMode.HALF_EVEN;
+    /**
+     * Max scale, 10^scale must fit into long.
+     */
+    static final int MAX_SCALE = 18;
+
+    /**
+     * Amount of digits after the point.
+     */
+    private final int scale;
+    /**
+     * 10^scale.
+     */
+    private final long scaleFactor;
+    /**
+     * Rounding mode of operands and results.
+     */
+    private final RoundingMode rounding;
+
+    /**
+     * @param digits       amount of digits after the point, from 0 to MAX_SCALE
+     * @param roundingMode rounding mode of operands and results, not UNNECESSARY
+     * @throws IllegalArgumentException if scale or rounding mode is not supported
+     */
+    DecimalCalculator(int digits, RoundingMode roundingMode) {
+        if (digits < 0 || digits > MAX_SCALE || roundingMode == RoundingMode.UNNECESSARY) {
+            throw new IllegalArgumentException("Unsupported decimal scale or rounding: " + digits + " "
+                    + roundingMode);
+        }
+        this.scale = digits;
+        this.rounding = roundingMode;
+        long factor = 1;
+        for (int i = 0; i < digits; i++) {
+            factor *= 10;
+        }
+        this.scaleFactor = factor;
+    }
+
+    @Override
+    public CalculationResult evaluate(OperationType operation, CharSequence a, int aFrom, int aTo,
+                                      CharSequence b, int bFrom, int bTo, CalculationResult result) {
+        if (operation == OperationType.INCORRECT) {  // arguments do not matter
+            return result.setError(CalculationError.WRONG_OPERATION);
+        }
+        if (!parse(a, aFrom, aTo, result)) {
+            return result;
+        }
+        boolean wideA = result.isWideDecimal();
+        long c1 = result.getLong();
+        BigDecimal big1 = wideA ? result.getDecimal() : null;
+        if (!parse(b, bFrom, bTo, result)) {
+            return result;
+        }
+        if (wideA || result.isWideDecimal()) {
+            return evaluate(operation, wideA ? big1 : BigDecimal.valueOf(c1, scale), result.getDecimal(), result);
+        }
+        return evaluate(operation, c1, result.getLong(), result);
+    }
+
+    /**
+     * Evaluates operation on scaled values, BigDecimal is used on overflow.
+     *
+     * @param operation arithmetic operation
+     * @param a         1st argument, multiplied by 10^scale
+     * @param b         2nd argument, multiplied by 10^scale
+     * @param result    storage for result
+     * @return result
+     */
+    public CalculationResult evaluate(OperationType operation, long a, long b, CalculationResult result) {
+        long value;
+        switch (operation) {
+            case ADDITION:
+                value = a + b;
+                if (((a ^ value) & (b ^ value)) < 0) {
+                    break;
+                }
+                return result.setDecimal(value, scale);
+            case SUBTRACTION:
+                value = a - b;
+                if (((a ^ b) & (a ^ value)) < 0) {
+                    break;
+                }
+                return result.setDecimal(value, scale);
+            case MULTIPLICATION:
+                value = a * b;  // has 2 * scale digits after the point
+                if (Math.multiplyHigh(a, b) != value >> 63 || value == Long.MIN_VALUE) {
+                    break;
+                }
+                return result.setDecimal(divide(value, scaleFactor), scale);
+            default:
+                if (b == 0) {
+                    return result.setError(CalculationError.DIVISION_BY_ZERO);
+                }
+                value = a * scaleFactor;  // quotient keeps scale digits after the point
+                if (Math.multiplyHigh(a, scaleFactor) != value >> 63 || value == Long.MIN_VALUE
+                        || b == Long.MIN_VALUE) {
+                    break;
+                }
+                return result.setDecimal(divide(value, b), scale);
+        }
+        // overflow
+        return evaluate(operation, BigDecimal.valueOf(a, scale), BigDecimal.valueOf(b, scale), result);
+    }
+
+    /**
+     * Evaluates operation on decimals of any size.
+     *
+     * @param operation arithmetic operation
+     * @param a         1st argument, with scale digits after the point
+     * @param b         2nd argument, with scale digits after the point
+     * @param result    storage for result
+     * @return result
+     */
+    CalculationResult evaluate(OperationType operation, BigDecimal a, BigDecimal b, CalculationResult result) {
+        switch (operation) {
+            case ADDITION:
+                return result.setDecimal(a.add(b).setScale(scale, rounding));
+            case SUBTRACTION:
+                return result.setDecimal(a.subtract(b).setScale(scale, rounding));
+            case MULTIPLICATION:
+                return result.setDecimal(a.multiply(b).setScale(scale, rounding));
+            default:
+                if (b.signum() == 0) {
+                    return result.setError(CalculationError.DIVISION_BY_ZERO);
+                }
+                return result.setDecimal(a.divide(b, scale, rounding));
+        }
+    }
+
+    /**
+     * Getter for scale.
+     *
+     * @return amount of digits after the point
+     */
+    int getScale() {
+        return scale;
+    }
+
+    /**
+     * Divides with rounding mode of calculator.
+     *
+     * @param dividend dividend, not Long.MIN_VALUE
+     * @param divisor  divisor, not 0 and not Long.MIN_VALUE
+     * @return rounded quotient
+     */
+    private long divide(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        long remainder = Math.abs(dividend % divisor);
+        if (remainder == 0) {
+            return quotient;
+        }
+        boolean negative = (dividend < 0) != (divisor < 0);
+        int halfComparison = Long.compare(remainder, Math.abs(divisor) - remainder);
+        return roundsAway(negative, halfComparison, (quotient & 1) != 0) ? quotient + (negative ? -1 : 1)
+                : quotient;
+    }
+
+    /**
+     * Decides how inexact value is rounded.
+     *
+     * @param negative       sign of value
+     * @param halfComparison sign of comparison of dropped part with half of unit of the last kept digit
+     * @param odd            true if the last kept digit is odd
+     * @return true if magnitude is rounded up, false if it is rounded down
+     */
+    private boolean roundsAway(boolean negative, int halfComparison, boolean odd) {
+        switch (rounding) {
+            case UP:
+                return true;
+            case DOWN:
+                return false;
+            case CEILING:
+                return !negative;
+            case FLOOR:
+                return negative;
+            case HALF_UP:
+                return halfComparison >= 0;
+            case HALF_DOWN:
+                return halfComparison > 0;
+            default:  // HALF_EVEN
+                return halfComparison > 0 || halfComparison == 0 && odd;
+        }
+    }
+
+    /**
+     * Parses number in format "-?([0-9]+(\.[0-9]*)?|\.[0-9]+)" and rounds it to scale digits after the point.
+     *
+     * @param text   sequence with number
+     * @param from   index of the first char of number
+     * @param to     index after the last char of number
+     * @param result storage for number multiplied by 10^scale, or for WRONG_ARGUMENT error
+     * @return true if number is valid
+     */
+    boolean parse(CharSequence text, int from, int to, CalculationResult result) {
+        boolean negative = from < to && text.charAt(from) == '-';
+        int i = negative ? from + 1 : from;
+        long magnitude = 0;
+        boolean overflow = false;
+        boolean hasDigits = false;
+        boolean hasPoint = false;
+        int fractionDigits = 0;
+        int droppedDigit = -1;  // the first digit after the kept ones, -1 if there is no such digit
+        boolean nonZeroAfterDropped = false;
+        for (; i < to; i++) {
+            char c = text.charAt(i);
+            if ('0' <= c && c <= '9') {
+                hasDigits = true;
+                if (hasPoint && fractionDigits == scale) {  // digit is only used for rounding
+                    if (droppedDigit < 0) {
+                        droppedDigit = c - '0';
+                    } else {
+                        nonZeroAfterDropped |= c != '0';
+                    }
+                    continue;
+                }
+                if (hasPoint) {
+                    fractionDigits++;
+                }
+                overflow |= magnitude > (Long.MAX_VALUE - (c - '0')) / 10;
+                magnitude = magnitude * 10 + (c - '0');
+            } else if (c == '.' && !hasPoint) {
+                hasPoint = true;
+            } else {
+                result.setError(CalculationError.WRONG_ARGUMENT);
+                return false;
+            }
+        }
+        if (!hasDigits) {
+            result.setError(CalculationError.WRONG_ARGUMENT);
+            return false;
+        }
+        for (; fractionDigits < scale && !overflow; fractionDigits++) {
+            overflow = magnitude > Long.MAX_VALUE / 10;
+            magnitude *= 10;
+        }
+        if (overflow) {  // rare case, BigDecimal rounds the same way
+            result.setDecimal(new BigDecimal(text.subSequence(from, to).toString()).setScale(scale, rounding));
+            return true;
+        }
+        if (droppedDigit > 0 || nonZeroAfterDropped) {
+            int halfComparison = droppedDigit != 5 ? Integer.compare(droppedDigit, 5) : nonZeroAfterDropped ? 1 : 0;
+            if (roundsAway(negative, halfComparison, (magnitude & 1) != 0)) {
+                if (magnitude == Long.MAX_VALUE) {
+                    result.setDecimal(new BigDecimal(text.subSequence(from, to).toString())
+                            .setScale(scale, rounding));
+                    return true;
+                }
+                magnitude++;
+            }
+        }
+        result.setDecimal(negative ? -magnitude : magnitude, scale);
+        return true;
+    }
+}
+
+/**
+ * Implementation of calculator for strings.
+ */
+class StringCalculator extends Calculator {
+    @Override
+    public String add(String a, String b) {
+        return a + b;
+    }
+
+    @Override
+    public String subtract(String a, String b) {
+        return CalculationError.UNSUPPORTED_OPERATION.getMessage();
+    }
+
+    /**
+     * Builds the whole repeated text, so its length must fit into int.
+     *
+     * @param a string, repeated text
+     * @param b string, amount of repetitions
+     * @return a repeated b times, or error message
+     */
+    @Override
+    public String multiply(String a, String b) {
+        CalculationResult result = evaluate(OperationType.MULTIPLICATION, a, 0, a.length(), b, 0, b.length(),
+                new CalculationResult());
+        if (!result.isError() && !fitsIntoString(result.getText())) {
+            return CalculationError.WRONG_ARGUMENT.getMessage();
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param text text result, usually a rope
+     * @return true if text is not longer than Integer.MAX_VALUE, so it can be built as String
+     */
+    static boolean fitsIntoString(CharSequence text) {
+        return !(text instanceof Rope) || ((Rope) text).fitsIntoInt();
+    }
+
+    @Override
+    public String divide(String a, String b) {
+        return CalculationError.UNSUPPORTED_OPERATION.getMessage();
+    }
+
+    /**
+     * Concatenation and repetition are returned as lazy ropes, so their result is never built in memory
+     * when it is written by ResultWriter.
+     */
+    @Override
+    public CalculationResult evaluate(OperationType operation, CharSequence a, int aFrom, int aTo,
+                                      CharSequence b, int bFrom, int bTo, CalculationResult result) {
+        switch (operation) {
+            case ADDITION:
+                return result.setText(new ConcatRope(a.subSequence(aFrom, aTo).toString(),
+                        b.subSequence(bFrom, bTo).toString()));
+            case MULTIPLICATION:
+                // checking if 2nd argument is positive integer
+                if (bFrom < bTo && b.charAt(bFrom) == '-' || !NumberLexer.parseLong(b, bFrom, bTo, result)) {
+                    return result.setError(CalculationError.WRONG_ARGUMENT);
+                }
+                return result.setText(new RepeatRope(a.subSequence(aFrom, aTo).toString(), result.getLong()));
+            case SUBTRACTION:
+            case DIVISION:
+                return result.setError(CalculationError.UNSUPPORTED_OPERATION);
+            default:
+                return super.evaluate(operation, a, aFrom, aTo, b, bFrom, bTo, result);
+        }
+    }
+}
+
+/**
+ * Text that is described by its parts instead of being stored, so it takes memory of its parts only.
+ * ResultWriter writes rope by parts without building the whole text.
+ */
+abstract class Rope implements CharSequence {
+    /**
+     * Size of text which is built when rope is written by blocks.
+     */
+    static final int BLOCK_SIZE = 1 << 13;
+
+    /**
+     * @return amount of chars, it may not fit into int
+     */
+    abstract long getLength();
+
+    /**
+     * @return true if length fits into int, so text can be built as String
+     */
+    boolean fitsIntoInt() {
+        return getLength() <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Writes text by parts.
+     *
+     * @param writer destination
+     * @throws IOException if output failed
+     */
+    abstract void writeTo(ResultWriter writer) throws IOException;
+
+    /**
+     * @return amount of chars
+     * @throws ArithmeticException if rope is longer than Integer.MAX_VALUE
+     */
+    @Override
+    public int length() {
+        return Math.toIntExact(getLength());
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        StringBuilder part = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            part.append(charAt(i));
+        }
+        return part.toString();
+    }
+}
+
+/**
+ * Text of two concatenated parts.
+ */
+final class ConcatRope extends Rope {
+    /**
+     * 1st part.
+     */
+    private final CharSequence left;
+    /**
+     * 2nd part.
+     */
+    private final CharSequence right;
+
+    /**
+     * @param leftPart  1st part
+     * @param rightPart 2nd part
+     */
+    ConcatRope(CharSequence leftPart, CharSequence rightPart) {
+        this.left = leftPart;
+        this.right = rightPart;
+    }
+
+    @Override
+    long getLength() {
+        return lengthOf(left) + lengthOf(right);
+    }
+
+    private static long lengthOf(CharSequence part) {
+        return part instanceof Rope ? ((Rope) part).getLength() : part.length();
+    }
+
+    @Override
+    void writeTo(ResultWriter writer) throws IOException {
+        writer.write(left);
+        writer.write(right);
+    }
+
+    @Override
+    public char charAt(int index) {
+        int leftLength = left.length();
+        return index < leftLength ? left.charAt(index) : right.charAt(index - leftLength);
+    }
+
+    @Override
+    public String toString() {
+        return left.toString() + right;
+    }
+}
+
+/**
+ * Text repeated given amount of times.
+ */
+final class RepeatRope extends Rope {
+    /**
+     * Repeated text.
+     */
+    private final String base;
+    /**
+     * Amount of repetitions.
+     */
+    private final long count;
+
+    /**
+     * @param text        repeated text
+     * @param repetitions amount of repetitions, not negative
+     */
+    RepeatRope(String text, long repetitions) {
+        this.base = text;
+        this.count = repetitions;
+    }
+
+    @Override
+    long getLength() {
+        return base.isEmpty() ? 0 : Math.multiplyExact(base.length(), count);
+    }
+
+    @Override
+    boolean fitsIntoInt() {  // checked without multiplication, as length may not fit even into long
+        return base.isEmpty() || count <= Integer.MAX_VALUE / base.length();
+    }
+
+    @Override
+    void writeTo(ResultWriter writer) throws IOException {
+        if (base.isEmpty() || count == 0) {
+            return;
+        }
+        // short text is joined into a block, so that it is copied in big pieces
+        byte[] unit = base.getBytes(StandardCharsets.UTF_8);
+        long unitsPerBlock = Math.max(1, Math.min(count, BLOCK_SIZE / unit.length));
+        byte[] block = new byte[(int) unitsPerBlock * unit.length];
+        for (int i = 0; i < unitsPerBlock; i++) {
+            System.arraycopy(unit, 0, block, i * unit.length, unit.length);
+        }
+        long rest = count;
+        for (; rest >= unitsPerBlock; rest -= unitsPerBlock) {
+            writer.write(block, 0, block.length);
+        }
+        writer.write(block, 0, (int) rest * unit.length);
+    }
+
+    @Override
+    public char charAt(int index) {
+        return base.charAt(index % base.length());
+    }
+
+    @Override
+    public String toString() {
+        return base.repeat(Math.toIntExact(count));
+    }
+}
+
+/**
+ * Options given to the program through command line arguments.
+ */
+final class LaunchOptions {
+    /**
+     * Max number of TCP port.
+     */
+    private static final int MAX_PORT = 65535;
+    /**
+     * Shows if commands should be read as an unlimited buffered stream.
+     */
+    private boolean streaming = false;
+    /**
+     * Amount of threads that evaluate commands in parallel, 0 if commands are evaluated in main thread.
+     */
+    private int threads = 0;
+    /**
+     * Max amount of cached results, 0 if results are not cached.
+     */
+    private int cacheSize = 0;
+    /**
+     * Path of binary file for converted commands, null if commands are not converted.
+     */
+    private String convertPath = null;
+    /**
+     * Path of binary file with commands, null if commands are read from console.
+     */
+    private String binaryPath = null;
+    /**
+     * Directory or manifest of input files to evaluate in one batch, null if there is no batch.
+     */
+    private String batchPath = null;
+    /**
+     * Part of names of benchmarks to run, null if benchmarks are not run.
+     */
+    private String benchmarkFilter = null;
+    /**
+     * Shows if self-checks should be run instead of evaluating commands.
+     */
+    private boolean selfCheck = false;
+    /**
+     * Path of file for snapshot of metrics, null if metrics are not collected.
+     */
+    private String metricsPath = null;
+    /**
+     * Port of calculator server, 0 for any free port, -1 if server is not started.
+     */
+    private int serverPort = -1;
+    /**
+     * Shows if INTEGER calculator should accept integers of any size instead of overflowing as int.
+     */
+    private boolean adaptive = false;
+    /**
+     * Shows if operands may refer to results of earlier commands.
+     */
+    private boolean registers = false;
+    /**
+     * Amount of digits after the point of DECIMAL calculator.
+     */
+    private int scale = DecimalCalculator.DEFAULT_SCALE;
+    /**
+     * Rounding mode of DECIMAL calculator.
+     */
+    private RoundingMode rounding = DecimalCalculator.DEFAULT_ROUNDING;
+
+    private LaunchOptions() { }
+
+    /**
+     * Parses command line arguments.
+     *
+     * @param args command line arguments
+     * @return parsed options
+     * @throws IllegalArgumentException if argument is unknown
+     */
+    static LaunchOptions parse(String[] args) {
+        LaunchOptions options = new LaunchOptions();
+        for (String arg : args) {
+            if (arg.equals("--stream")) {
+                options.streaming = true;
+            } else if (arg.equals("--parallel")) {  // parallel evaluation on all cores
+                options.streaming = true;
+                options.threads = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--threads=")) {
+                options.streaming = true;
+                options.threads = parsePositive(arg, "--threads=".length());
+            } else if (arg.startsWith("--scale=")) {
+                options.scale = arg.equals("--scale=0") ? 0 : parsePositive(arg, "--scale=".length());
+                if (options.scale > DecimalCalculator.MAX_SCALE) {
+                    throw new IllegalArgumentException("Wrong option value: " + arg);
+                }
+            } else if (arg.startsWith("--rounding=")) {
+                options.rounding = parseRounding(arg, "--rounding=".length());
+            } else if (arg.equals("--registers")) {
+                options.streaming = true;
+                options.registers = true;
+            } else if (arg.equals("--adaptive")) {
+                options.streaming = true;
+                options.adaptive = true;
+            } else if (arg.startsWith("--server=")) {
+                options.serverPort = arg.equals("--server=0") ? 0 : parsePositive(arg, "--server=".length());
+                if (options.serverPort > MAX_PORT) {
+                    throw new IllegalArgumentException("Wrong option value: " + arg);
+                }
+            } else if (arg.startsWith("--metrics=")) {
+                options.streaming = true;
+                options.metricsPath = arg.substring("--metrics=".length());
+            } else if (arg.equals("--bench")) {
+                options.benchmarkFilter = "";
+            } else if (arg.startsWith("--bench=")) {
+                options.benchmarkFilter = arg.substring("--bench=".length());
+            } else if (arg.equals("--check")) {
+                options.selfCheck = true;
+            } else if (arg.startsWith("--convert=")) {
+                options.convertPath = arg.substring("--convert=".length());
+            } else if (arg.startsWith("--binary=")) {
+                options.binaryPath = arg.substring("--binary=".length());
+            } else if (arg.startsWith("--batch=")) {
+                options.batchPath = arg.substring("--batch=".length());
+            } else if (arg.startsWith("--cache=")) {
+                options.streaming = true;
+                options.cacheSize = parsePositive(arg, "--cache=".length());
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Parses positive int value of option.
+     *
+     * @param arg  option
+     * @param from index of the first char of value
+     * @return value
+     * @throws IllegalArgumentException if value is not a positive int
+     */
+    private static int parsePositive(String arg, int from) {
+        CalculationResult value = new CalculationResult();
+        if (!NumberLexer.parseInt(arg, from, arg.length(), value) || value.getInt() <= 0) {
+            throw new IllegalArgumentException("Wrong option value: " + arg);
+        }
+        return value.getInt();
+    }
+
+    /**
+     * Parses rounding mode of DECIMAL calculator.
+     *
+     * @param arg  option
+     * @param from index of the first char of value
+     * @return rounding mode
+     * @throws IllegalArgumentException if value is not a name of supported rounding mode
+     */
+    private static RoundingMode parseRounding(String arg, int from) {
+        for (RoundingMode mode : RoundingMode.values()) {
+            if (mode != RoundingMode.UNNECESSARY && arg.substring(from).equals(mode.name())) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Wrong option value: " + arg);
+    }
+
+    /**
+     * Getter for scale.
+     *
+     * @return amount of digits after the point of DECIMAL calculator
+     */
+    int getScale() {
+        return scale;
+    }
+
+    /**
+     * Getter for rounding.
+     *
+     * @return rounding mode of DECIMAL calculator
+     */
+    RoundingMode getRounding() {
+        return rounding;
+    }
+
+    /**
+     * Getter for registers.
+     *
+     * @return true if operands may refer to results of earlier commands
+     */
+    boolean hasRegisters() {
+        return registers;
+    }
+
+    /**
+     * Getter for adaptive.
+     *
+     * @return true if INTEGER calculator should accept integers of any size
+     */
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Getter for serverPort.
+     *
+     * @return port of calculator server, 0 for any free port, -1 if server is not started
+     */
+    int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * Getter for metricsPath.
+     *
+     * @return path of file for snapshot of metrics, null if metrics are not collected
+     */
+    String getMetricsPath() {
+        return metricsPath;
+    }
+
+    /**
+     * Getter for selfCheck.
+     *
+     * @return true if self-checks should be run instead of evaluating commands
+     */
+    boolean isSelfCheck() {
+        return selfCheck;
+    }
+
+    /**
+     * Getter for benchmarkFilter.
+     *
+     * @return part of names of benchmarks to run, null if benchmarks are not run
+     */
+    String getBenchmarkFilter() {
+        return benchmarkFilter;
+    }
+
+    /**
+     * Getter for convertPath.
+     *
+     * @return path of binary file for converted commands, null if commands are not converted
+     */
+    String getConvertPath() {
+        return convertPath;
+    }
+
+    /**
+     * Getter for binaryPath.
+     *
+     * @return path of binary file with commands, null if commands are read from console
+     */
+    String getBinaryPath() {
+        return binaryPath;
+    }
+
+    /**
+     * Getter for batchPath.
+     *
+     * @return directory or manifest of input files, null if there is no batch
+     */
+    String getBatchPath() {
+        return batchPath;
+    }
+
+    /**
+     * Getter for cacheSize.
+     *
+     * @return max amount of cached results, 0 if results are not cached
+     */
+    int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Getter for threads.
+     *
+     * @return amount of threads for parallel evaluation, 0 if commands are evaluated in main thread
+     */
+    int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Getter for streaming.
+     *
+     * @return true if commands should be read as a stream
+     */
+    boolean isStreaming() {
+        return streaming;
+    }
+}
+
+/**
+ * One line of input stored as UTF-8 bytes and split into space separated tokens.
+ * Object is reused for every line, so it is never allocated per command.
+ */
+final class CommandLine implements CharSequence {
+    /**
+     * Initial capacity of line storage.
+     */
+    private static final int INITIAL_CAPACITY = 128;
+
+    /**
+     * Bytes of the line, without line separator.
+     */
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    /**
+     * Amount of used bytes.
+     */
+    private int length = 0;
+    /**
+     * Pairs of (start, end) indices of tokens.
+     */
+    private int[] tokenBounds = new int[2 * 4];
+    /**
+     * Amount of tokens, -1 if line was not split yet.
+     */
+    private int tokenCount = -1;
+
+    /**
+     * Makes line empty.
+     */
+    void clear() {
+        length = 0;
+        tokenCount = -1;
+    }
+
+    /**
+     * Adds bytes to the end of the line.
+     *
+     * @param src    source array
+     * @param from   index of the first byte in source
+     * @param amount amount of bytes to copy
+     */
+    void append(byte[] src, int from, int amount) {
+        if (length + amount > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + amount));
+        }
+        System.arraycopy(src, from, bytes, length, amount);
+        length += amount;
+        tokenCount = -1;
+    }
+
+    /**
+     * Adds bytes to the end of the line.
+     *
+     * @param src    source buffer, its position is moved
+     * @param amount amount of bytes to copy
+     */
+    void append(ByteBuffer src, int amount) {
+        if (length + amount > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + amount));
+        }
+        src.get(bytes, length, amount);
+        length += amount;
+        tokenCount = -1;
+    }
+
+    /**
+     * Removes trailing carriage return left by Windows line separators.
+     */
+    void trimCarriageReturn() {
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+    }
+
+    /**
+     * Splits line by single spaces the same way as String.split(" ") does.
+     */
+    private void tokenize() {
+        tokenCount = 0;
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || bytes[i] == ' ') {
+                if (2 * tokenCount + 1 >= tokenBounds.length) {
+                    tokenBounds = Arrays.copyOf(tokenBounds, tokenBounds.length * 2);
+                }
+                tokenBounds[2 * tokenCount] = start;
+                tokenBounds[2 * tokenCount + 1] = i;
+                tokenCount++;
+                start = i + 1;
+            }
+        }
+        // trailing empty tokens are dropped, as in String.split
+        while (tokenCount > 1 && tokenBounds[2 * tokenCount - 2] == tokenBounds[2 * tokenCount - 1]) {
+            tokenCount--;
+        }
+    }
+
+    /**
+     * @return amount of space separated tokens
+     */
+    int getTokenCount() {
+        if (tokenCount < 0) {
+            tokenize();
+        }
+        return tokenCount;
+    }
+
+    /**
+     * @param index number of token
+     * @return index of the first char of token
+     */
+    int getTokenStart(int index) {
+        return tokenBounds[2 * index];
+    }
+
+    /**
+     * @param index number of token
+     * @return index after the last char of token
+     */
+    int getTokenEnd(int index) {
+        return tokenBounds[2 * index + 1];
+    }
+
+    /**
+     * @param index number of token
+     * @return token decoded into string
+     */
+    String getToken(int index) {
+        return new String(bytes, getTokenStart(index), getTokenEnd(index) - getTokenStart(index),
+                StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns byte of the line as char, so it is exact only for ASCII symbols.
+     *
+     * @param index index of char
+     * @return char at index
+     */
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes[index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * Reads input line by line through one big reusable buffer.
+ */
+final class CommandReader {
+    /**
+     * Default size of buffer.
+     */
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * Source of data.
+     */
+    private final InputStream in;
+    /**
+     * Chunk of input that is read at once.
+     */
+    private final byte[] buffer;
+    /**
+     * Index of the first unread byte in buffer.
+     */
+    private int position = 0;
+    /**
+     * Amount of valid bytes in buffer.
+     */
+    private int limit = 0;
+
+    /**
+     * @param input    source of data
+     * @param capacity size of buffer
+     */
+    CommandReader(InputStream input, int capacity) {
+        this.in = input;
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * Reads next line.
+     *
+     * @param line storage for line, its previous content is dropped
+     * @return false if input is over and nothing was read
+     * @throws IOException if input failed
+     */
+    boolean readLine(CommandLine line) throws IOException {
+        line.clear();
+        boolean hasData = false;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {  // end of input
+                    limit = 0;
+                    line.trimCarriageReturn();
+                    return hasData;
+                }
+            }
+            hasData = true;
+            int end = position;
+            while (end < limit && buffer[end] != '\n') {
+                end++;
+            }
+            line.append(buffer, position, end - position);
+            if (end < limit) {  // line separator found
+                position = end + 1;
+                line.trimCarriageReturn();
+                return true;
+            }
+            position = limit;
+        }
+    }
+
+    /**
+     * Checks if next line can be read without waiting for input.
+     *
+     * @return true if buffer contains line separator
+     */
+    boolean hasBufferedLine() {
+        for (int i = position; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads whole lines into chunk until it is full, maxLines are read or input is over.
+     *
+     * @param chunk    storage for lines, its previous content is dropped
+     * @param maxLines max amount of lines to read
+     * @return amount of read lines
+     * @throws IOException if input failed
+     */
+    long readLines(CommandChunk chunk, long maxLines) throws IOException {
+        chunk.clear();
+        long lines = 0;
+        boolean hasUnfinishedLine = false;
+        while (lines < maxLines) {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {  // end of input, last line may have no separator
+                    limit = 0;
+                    return hasUnfinishedLine ? lines + 1 : lines;
+                }
+            }
+            // whole lines from buffer are copied at once
+            int end = position;
+            while (end < limit && lines < maxLines && (hasUnfinishedLine || chunk.remaining() > end - position)) {
+                hasUnfinishedLine = true;
+                if (buffer[end++] == '\n') {
+                    lines++;
+                    hasUnfinishedLine = false;
+                }
+            }
+            chunk.append(buffer, position, end - position);
+            position = end;
+            if (!hasUnfinishedLine && chunk.remaining() == 0) {  // chunk is full
+                break;
+            }
+        }
+        return lines;
+    }
+}
+
+/**
+ * Collects output in one big reusable buffer and writes it in chunks.
+ */
+final class ResultWriter {
+    /**
+     * Default size of buffer.
+     */
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    /**
+     * Amount of chars in the longest long, including sign.
+     */
+    private static final int MAX_LONG_LENGTH = 20;
+    /**
+     * ASCII digits of numbers from 00 to 99, two bytes per number.
+     */
+    private static final byte[] DIGIT_PAIRS = new byte[200];
+    /**
+     * Messages of errors encoded in UTF-8, indexed by CalculationError ordinal.
+     */
+    private static final byte[][] ERROR_MESSAGES = new byte[CalculationError.values().length][];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_PAIRS[2 * i] = (byte) ('0' + i / 10);
+            DIGIT_PAIRS[2 * i + 1] = (byte) ('0' + i % 10);
+        }
+        for (CalculationError error : CalculationError.values()) {
+            ERROR_MESSAGES[error.ordinal()] = error.getMessage().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+    /**
+     * Amount of chars in the longest decimal written by writeDecimal(): sign, 19 digits and point.
+     */
+    private static final int MAX_DECIMAL_LENGTH = 21;
+
+    /**
+     * Destination of data.
+     */
+    private final OutputStream out;
+    /**
+     * Bytes that are not written yet.
+     */
+    private final byte[] buffer;
+    /**
+     * Amount of used bytes in buffer.
+     */
+    private int position = 0;
+
+    /**
+     * @param output   destination of data
+     * @param capacity size of buffer, at least 20 bytes
+     */
+    ResultWriter(OutputStream output, int capacity) {
+        this.out = output;
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * Writes text encoded in UTF-8.
+     *
+     * @param text text to write
+     * @throws IOException if output failed
+     */
+    void write(CharSequence text) throws IOException {
+        if (text instanceof Rope) {
+            write((Rope) text);
+            return;
+        }
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (buffer.length - position < 4) {  // longest UTF-8 symbol may not fit
+                flushBuffer();
+            }
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {  // broken pair is replaced, as String.getBytes does
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Writes bytes as they are.
+     *
+     * @param bytes  source array
+     * @param from   index of the first byte
+     * @param amount amount of bytes
+     * @throws IOException if output failed
+     */
+    void write(byte[] bytes, int from, int amount) throws IOException {
+        if (amount > buffer.length - position) {
+            flushBuffer();
+            if (amount > buffer.length) {  // too big for buffer, so it is not copied
+                out.write(bytes, from, amount);
+                return;
+            }
+        }
+        System.arraycopy(bytes, from, buffer, position, amount);
+        position += amount;
+    }
+
+    /**
+     * Writes rope by parts. Long rope is passed to destination as it is, if destination can keep ropes.
+     *
+     * @param rope text to write
+     * @throws IOException if output failed
+     */
+    private void write(Rope rope) throws IOException {
+        if (out instanceof ChunkOutput && rope.getLength() > Rope.BLOCK_SIZE) {
+            flushBuffer();
+            ((ChunkOutput) out).writeRope(rope);
+        } else {
+            rope.writeTo(this);
+        }
+    }
+
+    /**
+     * Writes text and line separator.
+     *
+     * @param text text to write
+     * @throws IOException if output failed
+     */
+    void writeLine(CharSequence text) throws IOException {
+        write(text);
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Writes result of calculation and line separator.
+     *
+     * @param result result to write
+     * @throws IOException if output failed
+     */
+    void writeLine(CalculationResult result) throws IOException {
+        switch (result.getKind()) {
+            case INTEGER:
+                writeLong(result.getLong());
+                break;
+            case REAL:
+                writeDouble(result.getDouble());
+                break;
+            case BIG_INTEGER:
+                write(result.getBigInteger().toString());
+                break;
+            case DECIMAL:
+                if (result.isWideDecimal()) {
+                    write(result.getDecimal().toPlainString());
+                } else {
+                    writeDecimal(result.getLong(), result.getScale());
+                }
+                break;
+            case TEXT:
+                write(result.getText());
+                break;
+            default:
+                byte[] message = ERROR_MESSAGES[result.getError().ordinal()];
+                write(message, 0, message.length);
+        }
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Writes number the same way as Double.toString does.
+     *
+     * @param value number to write
+     * @throws IOException if output failed
+     */
+    void writeDouble(double value) throws IOException {
+        if (buffer.length < DoubleFormatter.MAX_LENGTH) {  // too small buffer to format in place
+            write(Double.toString(value));
+            return;
+        }
+        if (buffer.length - position < DoubleFormatter.MAX_LENGTH) {
+            flushBuffer();
+        }
+        position = DoubleFormatter.format(value, buffer, position);
+    }
+
+    /**
+     * Writes fixed-point decimal the same way as BigDecimal.toPlainString does.
+     *
+     * @param unscaled number multiplied by 10^scale
+     * @param scale    amount of digits after the point, up to DecimalCalculator.MAX_SCALE
+     * @throws IOException if output failed
+     */
+    void writeDecimal(long unscaled, int scale) throws IOException {
+        if (unscaled == Long.MIN_VALUE || buffer.length < MAX_DECIMAL_LENGTH) {  // can not be negated or formatted
+            write(BigDecimal.valueOf(unscaled, scale).toPlainString());
+            return;
+        }
+        if (buffer.length - position < MAX_DECIMAL_LENGTH) {
+            flushBuffer();
+        }
+        if (unscaled < 0) {
+            buffer[position++] = '-';
+            unscaled = -unscaled;
+        }
+        int length = 1;
+        for (long rest = unscaled / 10; rest != 0; rest /= 10) {
+            length++;
+        }
+        int digits = Math.max(length, scale + 1);  // integer part has at least one digit
+        int end = position + digits + (scale > 0 ? 1 : 0);
+        for (int i = end - 1, digit = 0; digit < digits; i--, digit++) {
+            if (scale > 0 && digit == scale) {
+                buffer[i--] = '.';
+            }
+            buffer[i] = (byte) ('0' + unscaled % 10);
+            unscaled /= 10;
+        }
+        position = end;
+    }
+
+    /**
+     * Writes decimal representation of number.
+     *
+     * @param value number to write
+     * @throws IOException if output failed
+     */
+    void writeLong(long value) throws IOException {
+        if (buffer.length - position < MAX_LONG_LENGTH) {
+            flushBuffer();
+        }
+        if (value == Long.MIN_VALUE) {  // can not be negated
+            write(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int length = 1;
+        for (long bound = 10; length < MAX_LONG_LENGTH - 1 && value >= bound; bound *= 10) {
+            length++;
+        }
+        int end = position + length;
+        int i = end;
+        for (; value >= Integer.MAX_VALUE; value /= 100) {  // the rest is done in cheaper int arithmetic
+            int pair = 2 * (int) (value % 100);
+            buffer[--i] = DIGIT_PAIRS[pair + 1];
+            buffer[--i] = DIGIT_PAIRS[pair];
+        }
+        int rest = (int) value;
+        for (; rest >= 10; rest /= 100) {
+            int pair = 2 * (rest % 100);
+            buffer[--i] = DIGIT_PAIRS[pair + 1];
+            buffer[--i] = DIGIT_PAIRS[pair];
+        }
+        if (i > position) {
+            buffer[--i] = (byte) ('0' + rest);
+        }
+        position = end;
+    }
+
+    /**
+     * Writes everything collected so far.
+     *
+     * @throws IOException if output failed
+     */
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
+
+/**
+ * Evaluates commands read from stream: calculator type, amount of commands, commands.
+ * Unlike the console mode, amount of commands is not limited and memory use does not depend on it.
+ */
+final class StreamSession {
+    /**
+     * Implementations of calculator, indexed by CalculatorType ordinal.
+     */
+    private final Calculator[] calculators;
+    /**
+     * Input of session.
+     */
+    private final CommandReader reader;
+    /**
+     * Output of session.
+     */
+    private final ResultWriter writer;
+    /**
+     * Pool for parallel evaluation, null if commands are evaluated in current thread.
+     */
+    private final ForkJoinPool pool;
+    /**
+     * Cache of results, null if results are not cached.
+     */
+    private final ResultCache cache;
+    /**
+     * Storage for current line.
+     */
+    private final CommandLine line = new CommandLine();
+
+    /**
+     * @param calculatorsArray implementations of calculator, indexed by CalculatorType ordinal
+     * @param commandReader    input of session
+     * @param resultWriter     output of session
+     * @param forkJoinPool     pool for parallel evaluation, null to evaluate in current thread
+     * @param resultCache      cache of results, null to evaluate every command
+     */
+    StreamSession(Calculator[] calculatorsArray, CommandReader commandReader, ResultWriter resultWriter,
+                  ForkJoinPool forkJoinPool, ResultCache resultCache) {
+        this.calculators = calculatorsArray;
+        this.reader = commandReader;
+        this.writer = resultWriter;
+        this.pool = forkJoinPool;
+        this.cache = resultCache;
+    }
+
+    /**
+     * Evaluates all commands. Fatal error stops the session after its message is written.
+     *
+     * @throws IOException if input or output failed
+     */
+    void run() throws IOException {
+        try {
+            // reading type of calculator
+            CalculatorType calculatorType = reader.readLine(line) ? CalculatorType.parse(line.toString())
+                    : CalculatorType.INCORRECT;
+            if (calculatorType == CalculatorType.INCORRECT) {
+                writer.writeLine("Wrong calculator type");
+                return;
+            }
+            Calculator calculator = calculators[calculatorType.ordinal()];
+
+            // reading total amount of commands
+            long commandsNumber = reader.readLine(line) ? parseCommandsNumber(line) : -1;
+            if (commandsNumber < 1) {
+                writer.writeLine("Amount of commands is Not a Number");
+                return;
+            }
+
+            // reading operations and evaluating them until declared amount or end of input
+            if (pool != null) {
+                new ParallelCommandEngine(() -> new CommandEvaluator(calculatorType, calculator, cache, pool), pool)
+                        .run(reader, writer, commandsNumber);
+                return;
+            }
+            CommandEvaluator evaluator = new CommandEvaluator(calculatorType, calculator, cache, pool);
+            for (long i = 0; i < commandsNumber && reader.readLine(line); i++) {
+                writer.writeLine(evaluator.evaluate(line));
+            }
+        } finally {
+            writer.flush();
+        }
+    }
+
+    /**
+     * @param line line with amount of commands
+     * @return amount of commands, -1 if it is not a number
+     */
+    static long parseCommandsNumber(CommandLine line) {
+        if (line.length() == 0 || line.length() > 18) {  // empty or may not fit into long
+            return -1;
+        }
+        long result = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (!('0' <= c && c <= '9')) {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
+
+/**
+ * Evaluates commands in format "{operation} {1st argument} {2nd argument}",
+ * and aggregate commands in format "{aggregate} {argument} {argument}...".
+ * Keeps reusable storage for result, so one instance should be used by one thread only.
+ */
+final class CommandEvaluator {
+    /**
+     * Type of calculator.
+     */
+    private final CalculatorType calculatorType;
+    /**
+     * Calculator to use.
+     */
+    private final Calculator calculator;
+    /**
+     * Cache of results, null if results are not cached.
+     */
+    private final ResultCache cache;
+    /**
+     * Evaluator of aggregate commands.
+     */
+    private final AggregateReducer reducer;
+    /**
+     * Storage for result of current command.
+     */
+    private final CalculationResult result = new CalculationResult();
+
+    /**
+     * @param type         type of calculator
+     * @param calc         calculator to use
+     * @param resultCache  cache of results, it may be shared by evaluators of other threads; null to disable
+     * @param forkJoinPool pool for reduction of big aggregate commands, null to reduce them in current thread
+     */
+    CommandEvaluator(CalculatorType type, Calculator calc, ResultCache resultCache, ForkJoinPool forkJoinPool) {
+        this.calculatorType = type;
+        this.calculator = calc;
+        this.cache = resultCache;
+        this.reducer = new AggregateReducer(type, calc, forkJoinPool);
+    }
+
+    /**
+     * Evaluates command.
+     *
+     * @param line line with command
+     * @return result of command, valid until next call
+     */
+    CalculationResult evaluate(CommandLine line) {
+        int tokenCount = line.getTokenCount();
+        AggregateType aggregate = AggregateType.parse(line, line.getTokenStart(0), line.getTokenEnd(0));
+        if (aggregate != null) {  // aggregates are not cached, their operands are rarely repeated
+            return reducer.reduce(aggregate, line, result);
+        }
+        OperationType operation = OperationType.parse(line, line.getTokenStart(0), line.getTokenEnd(0));
+        if (operation == OperationType.INCORRECT) {
+            return reject(operation, CalculationError.WRONG_OPERATION);
+        }
+        if (tokenCount < 3) {  // operands are missing
+            return reject(operation, CalculationError.WRONG_ARGUMENT);
+        }
+        int aFrom = line.getTokenStart(1);
+        int aTo = line.getTokenEnd(1);
+        int bFrom = line.getTokenStart(2);
+        int bTo = line.getTokenEnd(2);
+        if (cache == null || !cache.accepts(aTo - aFrom + bTo - bFrom)) {
+            return calculator.evaluate(operation, line, aFrom, aTo, line, bFrom, bTo, result);
+        }
+
+        ResultCache.Key key = new ResultCache.Key(calculatorType, operation, line.getToken(1), line.getToken(2));
+        long start = System.nanoTime();
+        if (cache.lookup(key, result)) {
+            if (calculator instanceof MeteredCalculator) {  // such commands do not reach calculator, but are counted
+                ((MeteredCalculator) calculator).recordCached(operation, result, System.nanoTime() - start);
+            }
+            return result;
+        }
+        calculator.evaluate(operation, line, aFrom, aTo, line, bFrom, bTo, result);
+        cache.store(key, result);
+        return result;
+    }
+
+    /**
+     * @param operation operation of command
+     * @param error     reason why command is not evaluated
+     * @return result with error
+     */
+    private CalculationResult reject(OperationType operation, CalculationError error) {
+        if (calculator instanceof MeteredCalculator) {  // such commands do not reach calculator, but are counted
+            ((MeteredCalculator) calculator).recordRejected(operation, error);
+        }
+        return result.setError(error);
+    }
+}
+
+/**
+ * Evaluates aggregate commands in format "{aggregate} {argument} {argument}...", e.g. "sum 1 2 3".
+ * Operands are reduced by blocks of BLOCK_SIZE, and results of blocks are combined by a balanced tree whose
+ * shape depends only on amount of operands. So big commands are reduced on fork/join pool with exactly the same
+ * result as in one thread. Sums of doubles are compensated inside blocks and pairwise between blocks, so their
+ * error does not grow with amount of operands, as it does for a chain of "+" commands.
+ * Keeps no state between commands, so one instance may be used by several threads.
+ */
+final class AggregateReducer {
+    /**
+     * Amount of operands that are reduced sequentially by one task.
+     */
+    static final int BLOCK_SIZE = 1024;
+
+    /**
+     * Type of calculator.
+     */
+    private final CalculatorType calculatorType;
+    /**
+     * Calculator whose semantics is used, it is never MeteredCalculator.
+     */
+    private final Calculator calculator;
+    /**
+     * Pool for reduction of big commands, null if commands are reduced in current thread.
+     */
+    private final ForkJoinPool pool;
+    /**
+     * Evaluates operations on integers of any size that fit into long.
+     */
+    private final AdaptiveIntegerCalculator longs = new AdaptiveIntegerCalculator();
+
+    /**
+     * @param type         type of calculator
+     * @param calc         calculator whose semantics is used
+     * @param forkJoinPool pool for reduction of big commands, null to reduce in current thread
+     */
+    AggregateReducer(CalculatorType type, Calculator calc, ForkJoinPool forkJoinPool) {
+        this.calculatorType = type;
+        this.calculator = calc instanceof MeteredCalculator ? ((MeteredCalculator) calc).getDelegate() : calc;
+        this.pool = forkJoinPool;
+    }
+
+    /**
+     * Reduces operands of command. Sums and products of INTEGER wrap around as chains of "+" and "*" do, but mean
+     * is computed from the exact sum; all means are rounded as division of the calculator rounds.
+     * Only sum (concatenation) is supported for strings.
+     *
+     * @param aggregate aggregate of command
+     * @param line      line with command, operands start from the 2nd token
+     * @param result    storage for result
+     * @return result
+     */
+    CalculationResult reduce(AggregateType aggregate, CommandLine line, CalculationResult result) {
+        int count = line.getTokenCount() - 1;
+        if (count < 1) {  // operands are missing
+            return result.setError(CalculationError.WRONG_ARGUMENT);
+        }
+        if (calculatorType == CalculatorType.STRING && aggregate != AggregateType.SUM) {
+            return result.setError(CalculationError.UNSUPPORTED_OPERATION);
+        }
+        ReduceTask task = new ReduceTask(aggregate, line, 1, count + 1, pool != null && count > BLOCK_SIZE);
+        CalculationResult value = task.isParallel() ? pool.invoke(task) : task.compute();
+        if (calculator instanceof IntegerCalculator && aggregate == AggregateType.SUM && !value.isError()) {
+            return result.setLong((int) value.getLong());  // sum is exact, it wraps around only now
+        }
+        if (value.isError() || aggregate != AggregateType.MEAN) {
+            return result.set(value);
+        }
+
+        // mean is the sum divided by amount of operands
+        CalculationResult divisor = new CalculationResult();
+        if (calculator instanceof IntegerCalculator) {
+            return result.setLong(value.getLong() / count);  // sum is exact, so mean fits into int
+        } else if (calculatorType == CalculatorType.DOUBLE) {
+            return result.setDouble(value.getDouble() / count);
+        } else if (calculator instanceof DecimalCalculator) {
+            divisor.setDecimal(BigDecimal.valueOf(count).setScale(((DecimalCalculator) calculator).getScale()));
+        } else {
+            divisor.setLong(count);
+        }
+        return evaluate(OperationType.DIVISION, value, divisor, result);
+    }
+
+    /**
+     * Reduces operands of one block.
+     *
+     * @param aggregate aggregate of command
+     * @param line      line with command
+     * @param from      index of the first token of block
+     * @param to        index after the last token of block
+     * @return partial result of block, or error of the first invalid operand
+     */
+    private CalculationResult reduceBlock(AggregateType aggregate, CommandLine line, int from, int to) {
+        CalculationResult value = new CalculationResult();
+        if (calculator instanceof IntegerCalculator) {
+            long sum = 0;  // exact, amount of operands is far less than 2^32
+            int product = 1;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int token = from; token < to; token++) {
+                if (!NumberLexer.parseInt(line, line.getTokenStart(token), line.getTokenEnd(token), value)) {
+                    return value;
+                }
+                int operand = value.getInt();
+                sum += operand;
+                product *= operand;
+                min = Math.min(min, operand);
+                max = Math.max(max, operand);
+            }
+            return value.setLong(aggregate == AggregateType.PRODUCT ? product
+                    : aggregate == AggregateType.MIN ? min : aggregate == AggregateType.MAX ? max : sum);
+        }
+        if (calculatorType == CalculatorType.DOUBLE) {
+            double sum = 0;
+            double compensation = 0;  // lost low-order bits of sum, by Kahan-Babuska-Neumaier algorithm
+            double product = 1;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int token = from; token < to; token++) {
+                if (!NumberLexer.parseDouble(line, line.getTokenStart(token), line.getTokenEnd(token), value)) {
+                    return value;
+                }
+                double operand = value.getDouble();
+                double total = sum + operand;
+                compensation += Math.abs(sum) >= Math.abs(operand) ? (sum - total) + operand : (operand - total) + sum;
+                sum = total;
+                product *= operand;
+                min = Math.min(min, operand);
+                max = Math.max(max, operand);
+            }
+            sum = Double.isFinite(sum) ? sum + compensation : sum;  // compensation of infinite sum is NaN
+            return value.setDouble(aggregate == AggregateType.PRODUCT ? product
+                    : aggregate == AggregateType.MIN ? min : aggregate == AggregateType.MAX ? max : sum);
+        }
+        if (calculatorType == CalculatorType.STRING) {
+            StringBuilder concatenation = new StringBuilder();
+            for (int token = from; token < to; token++) {
+                concatenation.append(line.subSequence(line.getTokenStart(token), line.getTokenEnd(token)));
+            }
+            return value.setText(concatenation.toString());
+        }
+
+        // integers of any size or decimals, folded by the same operations as commands use
+        CalculationResult operand = new CalculationResult();
+        for (int token = from; token < to; token++) {
+            if (!parse(line, line.getTokenStart(token), line.getTokenEnd(token), token == from ? value : operand)) {
+                return token == from ? value : operand;
+            }
+            if (token > from) {
+                combine(aggregate, value, operand, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Parses operand of integer of any size or decimal calculator.
+     *
+     * @param text   sequence with operand
+     * @param from   index of the first char of operand
+     * @param to     index after the last char of operand
+     * @param result storage for operand, or for WRONG_ARGUMENT error
+     * @return true if operand is valid
+     */
+    private boolean parse(CharSequence text, int from, int to, CalculationResult result) {
+        if (calculator instanceof DecimalCalculator) {
+            return ((DecimalCalculator) calculator).parse(text, from, to, result);
+        }
+        if (NumberLexer.parseLong(text, from, to, result)) {
+            return true;
+        }
+        if (!NumberLexer.checkBigInteger(text, from, to, result)) {
+            return false;
+        }
+        result.setBigInteger(BigIntegerCalculator.parse(text, from, to));
+        return true;
+    }
+
+    /**
+     * Combines partial results.
+     *
+     * @param aggregate aggregate of command
+     * @param a         partial result of earlier operands
+     * @param b         partial result of later operands
+     * @param result    storage for result, it may be one of partial results
+     * @return result
+     */
+    private CalculationResult combine(AggregateType aggregate, CalculationResult a, CalculationResult b,
+                                      CalculationResult result) {
+        if (a.isError() || b.isError()) {  // error of the first invalid operand
+            return result.set(a.isError() ? a : b);
+        }
+        switch (aggregate) {
+            case MIN:
+                return result.set(compare(a, b) <= 0 ? a : b);
+            case MAX:
+                return result.set(compare(a, b) >= 0 ? a : b);
+            case PRODUCT:
+                if (calculator instanceof IntegerCalculator) {
+                    return result.setLong((int) a.getLong() * (int) b.getLong());
+                } else if (calculatorType == CalculatorType.DOUBLE) {
+                    return result.setDouble(a.getDouble() * b.getDouble());
+                }
+                return evaluate(OperationType.MULTIPLICATION, a, b, result);
+            default:  // sum and mean
+                if (calculator instanceof IntegerCalculator) {
+                    return result.setLong(a.getLong() + b.getLong());
+                } else if (calculatorType == CalculatorType.DOUBLE) {
+                    return result.setDouble(a.getDouble() + b.getDouble());
+                } else if (calculatorType == CalculatorType.STRING) {
+                    return result.setText(new ConcatRope(a.getText(), b.getText()));
+                }
+                return evaluate(OperationType.ADDITION, a, b, result);
+        }
+    }
+
+    /**
+     * Compares partial results of the same kind of calculator.
+     *
+     * @param a 1st partial result
+     * @param b 2nd partial result
+     * @return negative if a is less than b, 0 if they are equal, positive otherwise
+     */
+    private int compare(CalculationResult a, CalculationResult b) {
+        if (calculator instanceof IntegerCalculator) {
+            return Long.compare(a.getLong(), b.getLong());
+        } else if (calculatorType == CalculatorType.DOUBLE) {
+            return Double.compare(a.getDouble(), b.getDouble());
+        } else if (calculator instanceof DecimalCalculator) {
+            return a.isWideDecimal() || b.isWideDecimal() ? a.getDecimal().compareTo(b.getDecimal())
+                    : Long.compare(a.getLong(), b.getLong());  // the same scale
+        }
+        return a.getKind() == CalculationResult.Kind.INTEGER && b.getKind() == CalculationResult.Kind.INTEGER
+                ? Long.compare(a.getLong(), b.getLong()) : toBigInteger(a).compareTo(toBigInteger(b));
+    }
+
+    /**
+     * Evaluates operation on partial results of integer of any size or decimal calculator.
+     *
+     * @param operation arithmetic operation
+     * @param a         1st argument
+     * @param b         2nd argument
+     * @param result    storage for result, it may be one of arguments
+     * @return result
+     */
+    private CalculationResult evaluate(OperationType operation, CalculationResult a, CalculationResult b,
+                                       CalculationResult result) {
+        if (calculator instanceof DecimalCalculator) {
+            DecimalCalculator decimal = (DecimalCalculator) calculator;
+            return a.isWideDecimal() || b.isWideDecimal()
+                    ? decimal.evaluate(operation, a.getDecimal(), b.getDecimal(), result)
+                    : decimal.evaluate(operation, a.getLong(), b.getLong(), result);
+        }
+        if (a.getKind() == CalculationResult.Kind.INTEGER && b.getKind() == CalculationResult.Kind.INTEGER) {
+            return longs.evaluate(operation, a.getLong(), b.getLong(), result);
+        }
+        return AdaptiveIntegerCalculator.narrow(
+                BigIntegerCalculator.evaluate(operation, toBigInteger(a), toBigInteger(b), result));
+    }
+
+    private static BigInteger toBigInteger(CalculationResult value) {
+        return value.getKind() == CalculationResult.Kind.INTEGER ? BigInteger.valueOf(value.getLong())
+                : value.getBigInteger();
+    }
+
+    /**
+     * Reduces tokens of command, halves of big ranges are reduced in parallel.
+     */
+    private final class ReduceTask extends RecursiveTask<CalculationResult> {
+        /**
+         * Version of serialized form, tasks are never serialized.
+         */
+        private static final long serialVersionUID = 1L;
+        /**
+         * Aggregate of command.
+         */
+        private final AggregateType aggregate;
+        /**
+         * Line with command.
+         */
+        private final CommandLine line;
+        /**
+         * Index of the first token.
+         */
+        private final int from;
+        /**
+         * Index after the last token.
+         */
+        private final int to;
+        /**
+         * Shows if halves are reduced by different tasks.
+         */
+        private final boolean parallel;
+
+        ReduceTask(AggregateType aggregateType, CommandLine commandLine, int fromToken, int toToken,
+                   boolean isParallel) {
+            this.aggregate = aggregateType;
+            this.line = commandLine;
+            this.from = fromToken;
+            this.to = toToken;
+            this.parallel = isParallel;
+        }
+
+        /**
+         * Getter for parallel.
+         *
+         * @return true if halves are reduced by different tasks
+         */
+        boolean isParallel() {
+            return parallel;
+        }
+
+        @Override
+        protected CalculationResult compute() {
+            if (to - from <= BLOCK_SIZE) {
+                return reduceBlock(aggregate, line, from, to);
+            }
+            int blocks = (to - from + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            int split = from + blocks / 2 * BLOCK_SIZE;  // depends only on amount of operands
+            ReduceTask low = new ReduceTask(aggregate, line, from, split, parallel);
+            ReduceTask high = new ReduceTask(aggregate, line, split, to, parallel);
+            if (parallel) {
+                high.fork();
+            }
+            CalculationResult lowResult = low.compute();
+            CalculationResult highResult = parallel ? high.join() : high.compute();
+            return combine(aggregate, lowResult, highResult, lowResult);
+        }
+    }
+}
+
+/**
+ * Block of whole input lines that is evaluated by one task of ParallelCommandEngine.
+ */
+final class CommandChunk {
+    /**
+     * Bytes of lines, including line separators.
+     */
+    private byte[] data;
+    /**
+     * Amount of used bytes.
+     */
+    private int length = 0;
+    /**
+     * Results of lines, filled by evaluate().
+     */
+    private final ChunkOutput output = new ChunkOutput();
+
+    /**
+     * @param capacity initial size of storage
+     */
+    CommandChunk(int capacity) {
+        this.data = new byte[capacity];
+    }
+
+    /**
+     * Makes chunk empty.
+     */
+    void clear() {
+        length = 0;
+        output.reset();
+    }
+
+    /**
+     * @return amount of bytes that can be added without growth
+     */
+    int remaining() {
+        return data.length - length;
+    }
+
+    /**
+     * Adds bytes to the end of the chunk.
+     *
+     * @param src    source array
+     * @param from   index of the first byte in source
+     * @param amount amount of bytes to copy
+     */
+    void append(byte[] src, int from, int amount) {
+        if (length + amount > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + amount));
+        }
+        System.arraycopy(src, from, data, length, amount);
+        length += amount;
+    }
+
+    /**
+     * Evaluates every line and stores results in the same order.
+     *
+     * @param evaluator evaluator for current thread
+     * @return this
+     */
+    CommandChunk evaluate(CommandEvaluator evaluator) {
+        CommandLine line = new CommandLine();
+        ResultWriter writer = new ResultWriter(output, ResultWriter.DEFAULT_CAPACITY);
+        try {
+            int start = 0;
+            while (start < length) {
+                int end = start;
+                while (end < length && data[end] != '\n') {
+                    end++;
+                }
+                line.clear();
+                line.append(data, start, end - start);
+                line.trimCarriageReturn();
+                writer.writeLine(evaluator.evaluate(line));
+                start = end + 1;
+            }
+            writer.flush();
+        } catch (IOException e) {  // output is in memory
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes results of evaluate().
+     *
+     * @param writer destination
+     * @throws IOException if output failed
+     */
+    void writeResults(ResultWriter writer) throws IOException {
+        output.writeTo(writer);
+    }
+}
+
+/**
+ * In-memory output of chunk.
+ */
+final class ChunkOutput extends ByteArrayOutputStream {
+    /**
+     * Long ropes, they are kept as they are instead of being built in memory.
+     */
+    private final List<Rope> ropes = new ArrayList<>();
+    /**
+     * Amount of bytes written before every rope.
+     */
+    private final List<Integer> ropeOffsets = new ArrayList<>();
+
+    /**
+     * Adds rope after collected bytes.
+     *
+     * @param rope text to add
+     */
+    void writeRope(Rope rope) {
+        ropes.add(rope);
+        ropeOffsets.add(count);
+    }
+
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        ropes.clear();
+        ropeOffsets.clear();
+    }
+
+    /**
+     * Writes collected bytes without copying them, and ropes between them.
+     *
+     * @param writer destination
+     * @throws IOException if output failed
+     */
+    void writeTo(ResultWriter writer) throws IOException {
+        int written = 0;
+        for (int i = 0; i < ropes.size(); i++) {
+            writer.write(buf, written, ropeOffsets.get(i) - written);
+            writer.write(ropes.get(i));
+            written = ropeOffsets.get(i);
+        }
+        writer.write(buf, written, count - written);
+    }
+}
+
+/**
+ * Splits stream of commands into chunks and evaluates them on fork/join pool.
+ * Results are written in the input order; amount of chunks in flight is bounded, so memory use is constant.
+ */
+final class ParallelCommandEngine {
+    /**
+     * Size of chunk in bytes.
+     */
+    private static final int CHUNK_SIZE = 1 << 18;
+
+    /**
+     * Creates evaluator for every chunk.
+     */
+    private final Supplier<CommandEvaluator> evaluators;
+    /**
+     * Pool that evaluates chunks.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * @param evaluatorFactory creates evaluator for every chunk
+     * @param forkJoinPool     pool that evaluates chunks
+     */
+    ParallelCommandEngine(Supplier<CommandEvaluator> evaluatorFactory, ForkJoinPool forkJoinPool) {
+        this.evaluators = evaluatorFactory;
+        this.pool = forkJoinPool;
+    }
+
+    /**
+     * Evaluates commands until given amount or end of input.
+     *
+     * @param reader         input
+     * @param writer         output
+     * @param commandsNumber max amount of commands
+     * @throws IOException if input or output failed
+     */
+    void run(CommandReader reader, ResultWriter writer, long commandsNumber) throws IOException {
+        int maxInFlight = 2 * pool.getParallelism() + 1;  // so that workers do not wait for reading
+        ArrayDeque<ForkJoinTask<CommandChunk>> inFlight = new ArrayDeque<>();
+        ArrayDeque<CommandChunk> free = new ArrayDeque<>();  // chunks are reused after their output is written
+
+        long remaining = commandsNumber;
+        while (remaining > 0) {
+            CommandChunk chunk = free.isEmpty() ? new CommandChunk(CHUNK_SIZE) : free.poll();
+            long lines = reader.readLines(chunk, remaining);
+            if (lines == 0) {  // end of input
+                break;
+            }
+            remaining -= lines;
+            inFlight.add(pool.submit(() -> chunk.evaluate(evaluators.get())));
+            if (inFlight.size() >= maxInFlight) {
+                free.add(writeOldest(inFlight, writer));
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            writeOldest(inFlight, writer);
+        }
+    }
+
+    private static CommandChunk writeOldest(ArrayDeque<ForkJoinTask<CommandChunk>> inFlight, ResultWriter writer)
+            throws IOException {
+        CommandChunk chunk = inFlight.poll().join();
+        chunk.writeResults(writer);
+        return chunk;
+    }
+}
+
+/**
+ * Validates and parses numbers in one pass over a window of char sequence.
+ * Does not allocate and does not throw on invalid input, error is reported through CalculationResult.
+ */
+final class NumberLexer {
+    /**
+     * Max amount of significant digits that surely fit into long.
+     */
+    private static final int MAX_LONG_DIGITS = 18;
+    /**
+     * Numbers up to this bound are exactly representable by double.
+     */
+    private static final long MAX_EXACT_DOUBLE_INTEGER = 1L << 53;
+    /**
+     * Powers of ten that are exactly representable by double.
+     */
+    private static final double[] EXACT_POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    /**
+     * Min decimal exponent in POWERS_OF_TEN_128, smaller powers round any 19 digits number to zero.
+     */
+    private static final int MIN_POWER_OF_TEN = -348;
+    /**
+     * Max decimal exponent in POWERS_OF_TEN_128, bigger powers round any number to infinity.
+     */
+    private static final int MAX_POWER_OF_TEN = 347;
+    /**
+     * Powers of ten as 128-bit numbers with the highest bit set, rounded down. Stored as pairs of higher
+     * and lower 64 bits, indexed by exponent - MIN_POWER_OF_TEN.
+     */
+    private static final long[] POWERS_OF_TEN_128 = new long[2 * (MAX_POWER_OF_TEN - MIN_POWER_OF_TEN + 1)];
+    /**
+     * Bias of binary exponent of double.
+     */
+    private static final int DOUBLE_EXPONENT_BIAS = 1023;
+    /**
+     * Mask of significand bits of double.
+     */
+    private static final long SIGNIFICAND_MASK = (1L << 52) - 1;
+
+    static {
+        for (int e = MIN_POWER_OF_TEN; e <= MAX_POWER_OF_TEN; e++) {
+            BigInteger power = BigInteger.TEN.pow(Math.abs(e));
+            BigInteger normalized;
+            if (e >= 0) {
+                int shift = power.bitLength() - 128;
+                normalized = shift >= 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+            } else {  // 2^(bitLength + 127) / 10^-e lies between 2^127 and 2^128
+                normalized = BigInteger.ONE.shiftLeft(power.bitLength() + 127).divide(power);
+            }
+            POWERS_OF_TEN_128[2 * (e - MIN_POWER_OF_TEN)] = normalized.shiftRight(64).longValue();
+            POWERS_OF_TEN_128[2 * (e - MIN_POWER_OF_TEN) + 1] = normalized.longValue();
+        }
+    }
+
+    private NumberLexer() { }
+
+    /**
+     * Parses integer in format "-?[0-9]+" that fits into int.
+     *
+     * @param text   sequence with number
+     * @param from   index of the first char of number
+     * @param to     index after the last char of number
+     * @param result storage for parsed number, or for WRONG_ARGUMENT error
+     * @return true if number is valid
+     */
+    static boolean parseInt(CharSequence text, int from, int to, CalculationResult result) {
+        return parseInteger(text, from, to, Integer.MIN_VALUE, Integer.MAX_VALUE, result);
+    }
+
+    /**
+     * Parses integer in format "-?[0-9]+" that fits into long.
+     *
+     * @param text   sequence with number
+     * @param from   index of the first char of number
+     * @param to     index after the last char of number
+     * @param result storage for parsed number, or for WRONG_ARGUMENT error
+     * @return true if number is valid
+     */
+    static boolean parseLong(CharSequence text, int from, int to, CalculationResult result) {
+        return parseInteger(text, from, to, Long.MIN_VALUE, Long.MAX_VALUE, result);
+    }
+
+    /**
+     * Checks that integer has format "-?[0-9]+", its size is not limited.
+     *
+     * @param text   sequence with number
+     * @param from   index of the first char of number
+     * @param to     index after the last char of number
+     * @param result storage for WRONG_ARGUMENT error, it is not changed if number is valid
+     * @return true if number is valid
+     */
+    static boolean checkBigInteger(CharSequence text, int from, int to, CalculationResult result) {
+        int i = from < to && text.charAt(from) == '-' ? from + 1 : from;
+        boolean isCorrect = i < to;
+        for (; i < to && isCorrect; i++) {
+            char c = text.charAt(i);
+            isCorrect = '0' <= c && c <= '9';
+        }
+        if (!isCorrect) {
+            result.setError(CalculationError.WRONG_ARGUMENT);
+        }
+        return isCorrect;
+    }
+
+    private static boolean parseInteger(CharSequence text, int from, int to, long min, long max,
+                                        CalculationResult result) {
+        boolean negative = from < to && text.charAt(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to) {  // no digits
+            result.setError(CalculationError.WRONG_ARGUMENT);
+            return false;
+        }
+        // accumulating negative value, because it has bigger range
+        long limit = negative ? min : -max;
+        long multiplicationLimit = limit / 10;
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value < multiplicationLimit || value * 10 < limit + digit) {
+                // not a digit or overflow
+                result.setError(CalculationError.WRONG_ARGUMENT);
+                return false;
+            }
+            value = value * 10 - digit;
+        }
+        result.setLong(negative ? value : -value);
+        return true;
+    }
+
+    /**
+     * Parses number in format "-?([0-9]+(\.[0-9]*)?|\.[0-9]+)", the same as Double.parseDouble does.
+     *
+     * @param text   sequence with number
+     * @param from   index of the first char of number
+     * @param to     index after the last char of number
+     * @param result storage for parsed number, or for WRONG_ARGUMENT error
+     * @return true if number is valid
+     */
+    static boolean parseDouble(CharSequence text, int from, int to, CalculationResult result) {
+        boolean negative = from < to && text.charAt(from) == '-';
+        int i = negative ? from + 1 : from;
+
+        long mantissa = 0;  // first significant digits
+        int significantDigits = 0;
+        int exponent = 0;  // power of ten of the last digit in mantissa
+        boolean hasDigits = false;
+        boolean hasPoint = false;
+        for (; i < to; i++) {
+            char c = text.charAt(i);
+            if ('0' <= c && c <= '9') {
+                hasDigits = true;
+                if (significantDigits < MAX_LONG_DIGITS) {
+                    if (mantissa != 0 || c != '0') {
+                        significantDigits++;
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (hasPoint) {
+                        exponent--;
+                    }
+                } else {  // digit is dropped, so it only shifts exponent
+                    significantDigits++;
+                    if (!hasPoint) {
+                        exponent++;
+                    }
+                }
+            } else if (c == '.' && !hasPoint) {
+                hasPoint = true;
+            } else {
+                result.setError(CalculationError.WRONG_ARGUMENT);
+                return false;
+            }
+        }
+        if (!hasDigits) {
+            result.setError(CalculationError.WRONG_ARGUMENT);
+            return false;
+        }
+
+        double value;
+        if (significantDigits <= MAX_LONG_DIGITS && mantissa <= MAX_EXACT_DOUBLE_INTEGER
+                && -EXACT_POWERS_OF_TEN.length < exponent && exponent < EXACT_POWERS_OF_TEN.length) {
+            // both mantissa and power of ten are exact, so one rounding gives correct result
+            value = exponent >= 0 ? mantissa * EXACT_POWERS_OF_TEN[exponent]
+                    : mantissa / EXACT_POWERS_OF_TEN[-exponent];
+            value = negative ? -value : value;
+        } else if (significantDigits <= MAX_LONG_DIGITS) {  // mantissa is exact
+            long bits = eiselLemire(mantissa, exponent);
+            value = bits >= 0 ? Double.longBitsToDouble(bits | (negative ? Long.MIN_VALUE : 0))
+                    : Double.parseDouble(text.subSequence(from, to).toString());
+        } else {
+            // dropped digits put number between mantissa and mantissa + 1, any of them is fine if both round
+            // to the same double
+            long bits = eiselLemire(mantissa, exponent);
+            value = bits >= 0 && bits == eiselLemire(mantissa + 1, exponent)
+                    ? Double.longBitsToDouble(bits | (negative ? Long.MIN_VALUE : 0))
+                    : Double.parseDouble(text.subSequence(from, to).toString());
+        }
+        result.setDouble(value);
+        return true;
+    }
+
+    /**
+     * Rounds mantissa 10^exponent to double by Eisel-Lemire algorithm: mantissa is multiplied by 128-bit
+     * approximation of power of ten, which is enough to round correctly unless the product is too close
+     * to the middle between two doubles.
+     *
+     * @param mantissa decimal significand, below 2^63
+     * @param exponent decimal exponent
+     * @return bits of positive double, -1 if the result is not known for sure or is subnormal or infinite
+     */
+    private static long eiselLemire(long mantissa, int exponent) {
+        if (mantissa == 0) {
+            return 0;
+        }
+        if (exponent < MIN_POWER_OF_TEN || exponent > MAX_POWER_OF_TEN) {
+            return -1;
+        }
+        int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+        long normalized = mantissa << leadingZeros;
+        // floor(log2(10) exponent) + 64 + bias, before the highest bit of product is known
+        long binaryExponent = (217_706L * exponent >> 16) + 64 + DOUBLE_EXPONENT_BIAS - leadingZeros;
+
+        long powerHigh = POWERS_OF_TEN_128[2 * (exponent - MIN_POWER_OF_TEN)];
+        long powerLow = POWERS_OF_TEN_128[2 * (exponent - MIN_POWER_OF_TEN) + 1];
+        long productHigh = unsignedMultiplyHigh(normalized, powerHigh);
+        long productLow = normalized * powerHigh;
+        if ((productHigh & 0x1FF) == 0x1FF && Long.compareUnsigned(productLow + normalized, normalized) < 0) {
+            // lower bits of product may change result, so the lower part of power is added
+            long lowHigh = unsignedMultiplyHigh(normalized, powerLow);
+            long lowLow = normalized * powerLow;
+            long mergedHigh = productHigh;
+            long mergedLow = productLow + lowHigh;
+            if (Long.compareUnsigned(mergedLow, productLow) < 0) {
+                mergedHigh++;
+            }
+            if ((mergedHigh & 0x1FF) == 0x1FF && mergedLow == -1
+                    && Long.compareUnsigned(lowLow + normalized, normalized) < 0) {
+                return -1;
+            }
+            productHigh = mergedHigh;
+            productLow = mergedLow;
+        }
+
+        // taking 54 bits, one more than double has, for rounding
+        int highestBit = (int) (productHigh >>> 63);
+        long significand = productHigh >>> (highestBit + 9);
+        binaryExponent -= 1 ^ highestBit;
+        if (productLow == 0 && (productHigh & 0x1FF) == 0 && (significand & 3) == 1) {  // exactly in the middle
+            return -1;
+        }
+        significand += significand & 1;
+        significand >>>= 1;
+        if (significand >>> 53 > 0) {  // rounding overflowed to the next power of two
+            significand >>>= 1;
+            binaryExponent++;
+        }
+        if (binaryExponent <= 0 || binaryExponent >= 0x7FF) {  // subnormal or infinite
+            return -1;
+        }
+        return binaryExponent << 52 | significand & SIGNIFICAND_MASK;
+    }
+
+    /**
+     * @param a 1st factor, unsigned
+     * @param b 2nd factor, unsigned
+     * @return higher 64 bits of unsigned 128-bit product
+     */
+    private static long unsignedMultiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + (a >> 63 & b) + (b >> 63 & a);
+    }
+}
+
+/**
+ * Differential check of NumberLexer.parseDouble against Double.parseDouble. Every accepted text must give
+ * a double with the same bits, and texts outside of the syntax of the lexer must be rejected.
+ * Cases are grouped by the part of the parser they stress, random ones are generated from a fixed seed.
+ */
+final class NumberLexerCheck {
+    /**
+     * Max length of digit strings that are checked with every placement of point and sign.
+     */
+    private static final int SHORT_DIGITS = 4;
+    /**
+     * Bounds of decimal exponents that are checked, a bit wider than the range of doubles.
+     */
+    private static final int MIN_EXPONENT = -360;
+    /**
+     * @see #MIN_EXPONENT
+     */
+    private static final int MAX_EXPONENT = 320;
+    /**
+     * Amount of random mantissas for every exponent.
+     */
+    private static final int MANTISSAS_PER_EXPONENT = 16;
+    /**
+     * Amount of random doubles whose neighbourhood is checked in halfway and subnormal groups.
+     */
+    private static final int RANDOM_DOUBLES = 2048;
+    /**
+     * Amount of random texts.
+     */
+    private static final int RANDOM_TEXTS = 1 << 18;
+    /**
+     * Max amount of printed mismatches.
+     */
+    private static final int MAX_REPORTED = 20;
+    /**
+     * Seed of random cases, fixed so that runs are repeatable.
+     */
+    private static final long SEED = 42;
+
+    /**
+     * Destination of report.
+     */
+    private final PrintStream out;
+    /**
+     * Storage for parsed number.
+     */
+    private final CalculationResult result = new CalculationResult();
+    /**
+     * Source of random cases.
+     */
+    private final Random random = new Random(SEED);
+    /**
+     * Amount of cases of current group.
+     */
+    private long cases;
+    /**
+     * Amount of mismatches of current group.
+     */
+    private long mismatches;
+    /**
+     * Amount of mismatches of all groups.
+     */
+    private long totalMismatches;
+
+    /**
+     * @param output destination of report
+     */
+    NumberLexerCheck(PrintStream output) {
+        this.out = output;
+    }
+
+    /**
+     * Checks all groups of cases and prints amount of cases and mismatches of every group.
+     *
+     * @return amount of mismatches, 0 if parser is correct
+     */
+    long run() {
+        out.printf("%-24s %12s %12s%n", "Group", "cases", "mismatches");
+        checkShort();
+        report("short");
+        checkExponents();
+        report("exponents");
+        checkFastPathEdges();
+        report("fast-path-edges");
+        checkHalfway();
+        report("halfway");
+        checkSubnormals();
+        report("subnormals");
+        checkOverflowAndUnderflow();
+        report("overflow-underflow");
+        checkRandom();
+        report("random");
+        checkRejected();
+        report("rejected");
+        out.println(totalMismatches == 0 ? "OK" : "FAILED: " + totalMismatches + " mismatches");
+        return totalMismatches;
+    }
+
+    /**
+     * Every digit string up to SHORT_DIGITS digits, leading zeros included, with every placement of point,
+     * with and without sign.
+     */
+    private void checkShort() {
+        int bound = 1;
+        for (int length = 1; length <= SHORT_DIGITS; length++) {
+            bound *= 10;
+            for (int number = 0; number < bound; number++) {
+                String digits = String.format("%0" + length + "d", number);
+                for (int point = -1; point <= length; point++) {  // -1 means no point
+                    String text = point < 0 ? digits : digits.substring(0, point) + '.' + digits.substring(point);
+                    check(text);
+                    check('-' + text);
+                }
+            }
+        }
+    }
+
+    /**
+     * Every exponent from MIN_EXPONENT to MAX_EXPONENT with small mantissas and with random ones of up to
+     * 19 digits, which fit into mantissa of the lexer, and of up to 40 digits, which are truncated.
+     */
+    private void checkExponents() {
+        for (int exponent = MIN_EXPONENT; exponent <= MAX_EXPONENT; exponent++) {
+            for (int mantissa = 1; mantissa < 100; mantissa++) {
+                check(decimal(Integer.toString(mantissa), exponent));
+            }
+            for (int i = 0; i < MANTISSAS_PER_EXPONENT; i++) {
+                check(decimal(randomDigits(1 + random.nextInt(19)), exponent));
+                check(decimal(randomDigits(20 + random.nextInt(21)), exponent));
+            }
+        }
+    }
+
+    /**
+     * Mantissas and exponents around the bounds of the exact path, of the 18 digits mantissa and of the
+     * table of Eisel-Lemire.
+     */
+    private void checkFastPathEdges() {
+        long exactBound = 1L << 53;
+        long[] mantissas = {
+            1, 9, exactBound - 2, exactBound - 1, exactBound, exactBound + 1, exactBound + 2,
+            99_999_999_999_999_999L, 100_000_000_000_000_000L, 999_999_999_999_999_999L,
+            1_000_000_000_000_000_000L, 1_000_000_000_000_000_001L, Long.MAX_VALUE,
+        };
+        int[] exponents = {0, 1, 15, 16, 21, 22, 23, 24, 292, 308, 309};
+        for (long mantissa : mantissas) {
+            for (int exponent : exponents) {
+                for (int sign = -1; sign <= 1; sign += 2) {
+                    check(decimal(Long.toString(mantissa), sign * exponent));
+                    check(decimal(Long.toString(mantissa) + "1", sign * exponent));  // one dropped digit
+                }
+            }
+            for (int exponent = -352; exponent <= -340; exponent++) {  // below the table of powers
+                check(decimal(Long.toString(mantissa), exponent));
+            }
+            for (int exponent = 340; exponent <= 350; exponent++) {  // above the table of powers
+                check(decimal(Long.toString(mantissa), exponent - Long.toString(mantissa).length()));
+            }
+        }
+    }
+
+    /**
+     * Exact middles between neighbouring doubles, and decimals just below and just above them, where
+     * approximations of Eisel-Lemire are not enough and fallback is taken.
+     */
+    private void checkHalfway() {
+        checkMiddle(0);
+        checkMiddle(Double.MIN_NORMAL);
+        checkMiddle(Math.nextDown(Double.MIN_NORMAL));
+        checkMiddle(1);
+        checkMiddle(9007199254740992.0);
+        checkMiddle(Math.nextDown(Double.MAX_VALUE));
+        for (int i = 0; i < RANDOM_DOUBLES; i++) {
+            checkMiddle(randomNormal());
+            checkMiddle(random.nextInt(1 << 20) + random.nextInt(1 << 10) / 1024.0);  // typical calculator input
+        }
+    }
+
+    /**
+     * Subnormal doubles: their shortest and exact decimals and middles between them.
+     */
+    private void checkSubnormals() {
+        double[] values = {Double.MIN_VALUE, 2 * Double.MIN_VALUE, 3 * Double.MIN_VALUE,
+            Math.nextDown(Double.MIN_NORMAL)};
+        for (double value : values) {
+            checkValue(value);
+            checkMiddle(value);
+        }
+        for (int i = 0; i < RANDOM_DOUBLES; i++) {
+            double value = Double.longBitsToDouble(random.nextLong() & ((1L << 52) - 1));
+            checkValue(value);
+            checkMiddle(value);
+        }
+    }
+
+    /**
+     * Numbers around the max double and the min subnormal, including ones that round to infinity and zero.
+     */
+    private void checkOverflowAndUnderflow() {
+        checkValue(Double.MAX_VALUE);
+        checkValue(Math.nextDown(Double.MAX_VALUE));
+        checkValue(Double.MIN_VALUE);
+        BigDecimal limit = new BigDecimal(Double.MAX_VALUE).add(new BigDecimal(Math.ulp(Double.MAX_VALUE))
+                .divide(BigDecimal.valueOf(2)));  // the smallest number that rounds to infinity
+        checkAround(limit);
+        checkAround(new BigDecimal(Double.MIN_VALUE).divide(BigDecimal.valueOf(2)));  // the biggest rounding to 0
+        for (int digits = 300; digits <= 320; digits++) {
+            check(randomDigits(digits));
+            check("0." + "0".repeat(digits + 20) + randomDigits(1 + random.nextInt(20)));
+        }
+        check("1" + "0".repeat(400));
+        check("0." + "0".repeat(400) + "1");
+    }
+
+    /**
+     * Random texts of the syntax of the lexer: random length, leading zeros, point and sign,
+     * and shortest decimals of random doubles between 2^-100 and 2^100, extreme ones are checked by other groups.
+     */
+    private void checkRandom() {
+        for (int i = 0; i < RANDOM_TEXTS; i++) {
+            StringBuilder text = new StringBuilder();
+            if (random.nextBoolean()) {
+                text.append('-');
+            }
+            text.append("0".repeat(random.nextInt(4) == 0 ? random.nextInt(3) : 0));
+            String digits = randomDigits(1 + random.nextInt(random.nextInt(4) == 0 ? 40 : 20));
+            int point = random.nextInt(digits.length() + 2) - 1;
+            text.append(point < 0 ? digits : digits.substring(0, point) + '.' + digits.substring(point));
+            check(text.toString());
+            double value = Math.scalb(1 + random.nextDouble(), random.nextInt(200) - 100);
+            check(new BigDecimal(Double.toString(value)).toPlainString());
+        }
+    }
+
+    /**
+     * Texts that Double.parseDouble accepts or that look like numbers, but are outside of the syntax of
+     * the lexer, so that they must be rejected.
+     */
+    private void checkRejected() {
+        String[] texts = {
+            "", "-", ".", "-.", "--1", "+1", "1-", "1.2.3", "..1", " 1", "1 ", "1e5", "1E5", "1e-5", "1d", "1f",
+            "1D", "1F", "NaN", "Infinity", "-Infinity", "0x1p3", "0x10", "1_000", "\u0661",
+        };
+        for (String text : texts) {
+            cases++;
+            if (NumberLexer.parseDouble(text, 0, text.length(), result)) {
+                mismatch(text, "accepted as " + result.getDouble());
+            }
+        }
+    }
+
+    /**
+     * Checks shortest and exact decimals of value.
+     *
+     * @param value finite double
+     */
+    private void checkValue(double value) {
+        check(new BigDecimal(Double.toString(value)).toPlainString());
+        check(new BigDecimal(value).toPlainString());
+    }
+
+    /**
+     * Checks exact middle between value and the next double, and decimals just below and above it.
+     *
+     * @param value finite non-negative double below the max one
+     */
+    private void checkMiddle(double value) {
+        checkAround(new BigDecimal(value).add(new BigDecimal(Math.nextUp(value))).divide(BigDecimal.valueOf(2)));
+    }
+
+    /**
+     * Checks number and numbers that differ from it by one unit of a digit after its last digit.
+     *
+     * @param number positive number
+     */
+    private void checkAround(BigDecimal number) {
+        BigDecimal step = BigDecimal.ONE.movePointLeft(Math.max(number.scale(), 0) + 1);
+        check(number.toPlainString());
+        check(number.subtract(step).toPlainString());
+        check(number.add(step).toPlainString());
+    }
+
+    /**
+     * Parses text by both parsers and compares bits of results.
+     *
+     * @param text number in syntax of the lexer
+     */
+    private void check(String text) {
+        cases++;
+        long expected = Double.doubleToRawLongBits(Double.parseDouble(text));
+        if (!NumberLexer.parseDouble(text, 0, text.length(), result)) {
+            mismatch(text, "rejected");
+        } else if (Double.doubleToRawLongBits(result.getDouble()) != expected) {
+            mismatch(text, result.getDouble() + " instead of " + Double.longBitsToDouble(expected));
+        }
+    }
+
+    private void mismatch(String text, String description) {
+        if (totalMismatches + mismatches < MAX_REPORTED) {
+            out.println("  \"" + (text.length() > 80 ? text.substring(0, 80) + "...\" (" + text.length()
+                    + " chars)" : text + "\"") + ": " + description);
+        }
+        mismatches++;
+    }
+
+    private void report(String group) {
+        out.printf("%-24s %12d %12d%n", group, cases, mismatches);
+        totalMismatches += mismatches;
+        cases = 0;
+        mismatches = 0;
+    }
+
+    /**
+     * @param digits   digits of number
+     * @param exponent power of ten of the last digit
+     * @return digits 10^exponent in syntax of the lexer
+     */
+    private static String decimal(String digits, int exponent) {
+        if (exponent >= 0) {
+            return digits + "0".repeat(exponent);
+        }
+        if (-exponent < digits.length()) {
+            return digits.substring(0, digits.length() + exponent) + '.' + digits.substring(digits.length() + exponent);
+        }
+        return "0." + "0".repeat(-exponent - digits.length()) + digits;
+    }
+
+    /**
+     * @param length amount of digits
+     * @return random digits, the first one is not zero
+     */
+    private String randomDigits(int length) {
+        char[] digits = new char[length];
+        digits[0] = (char) ('1' + random.nextInt(9));
+        for (int i = 1; i < length; i++) {
+            digits[i] = (char) ('0' + random.nextInt(10));
+        }
+        return new String(digits);
+    }
+
+    /**
+     * @return random positive normal double below the max one
+     */
+    private double randomNormal() {
+        double value;
+        do {
+            value = Double.longBitsToDouble(random.nextLong() >>> 1);
+        } while (value < Double.MIN_NORMAL || value >= Double.MAX_VALUE || Double.isNaN(value));
+        return value;
+    }
+}
+
+/**
+ * Commands stored as columns and grouped by operation, used by evaluateColumns() of numeric calculators.
+ * Group of operation is a list of command indices in ascending order.
+ * Object keeps its arrays between batches, so one object is reused for every batch of one thread.
+ * Loops over groups are left to the superword pass of JIT: the Vector API is an incubator module that needs
+ * --add-modules at compile time, and this one-file program is compiled and run without extra flags.
+ */
+final class ColumnarBatch {
+    /**
+     * Operations that are evaluated by columnar loops.
+     */
+    static final OperationType[] ARITHMETIC_OPERATIONS = {
+        OperationType.ADDITION, OperationType.SUBTRACTION, OperationType.MULTIPLICATION, OperationType.DIVISION,
+    };
+
+    /**
+     * Amount of scratch columns, enough for two arguments and result.
+     */
+    private static final int SCRATCH_COLUMNS = 3;
+
+    /**
+     * Indices of commands sorted by operation, stable. Only the first groupStarts[last] are used.
+     */
+    private int[] order = new int[0];
+    /**
+     * Start of group in order for every operation ordinal, and the end of the last group.
+     */
+    private final int[] groupStarts = new int[ARITHMETIC_OPERATIONS.length + 1];
+    /**
+     * Next free position in order for every operation ordinal, used while grouping.
+     */
+    private final int[] positions = new int[ARITHMETIC_OPERATIONS.length];
+    /**
+     * Codes of errors of commands of current batch.
+     */
+    private byte[] errors;
+    /**
+     * Scratch columns for groups of integers, grown on demand.
+     */
+    private final int[][] intScratch = new int[SCRATCH_COLUMNS][0];
+    /**
+     * Scratch columns for groups of doubles, grown on demand.
+     */
+    private final double[][] doubleScratch = new double[SCRATCH_COLUMNS][0];
+
+    /**
+     * Groups commands by operation, dropping the previous batch. Commands with unknown operation get
+     * WRONG_OPERATION error.
+     *
+     * @param operations   ordinals of OperationType for every command
+     * @param errorsColumn storage for codes of errors, it is filled with NO_ERROR_CODE
+     */
+    void group(byte[] operations, byte[] errorsColumn) {
+        this.errors = errorsColumn;
+        int operationsCount = ARITHMETIC_OPERATIONS.length;
+        Arrays.fill(positions, 0);
+        for (byte operation : operations) {
+            if (0 <= operation && operation < operationsCount) {
+                positions[operation]++;
+            }
+        }
+        for (int i = 0; i < operationsCount; i++) {
+            groupStarts[i + 1] = groupStarts[i] + positions[i];
+        }
+        if (order.length < groupStarts[operationsCount]) {
+            order = new int[groupStarts[operationsCount]];
+        }
+        System.arraycopy(groupStarts, 0, positions, 0, operationsCount);
+        for (int i = 0; i < operations.length; i++) {
+            byte operation = operations[i];
+            if (0 <= operation && operation < operationsCount) {
+                order[positions[operation]++] = i;
+                errors[i] = CalculationError.NO_ERROR_CODE;
+            } else {
+                errors[i] = CalculationError.WRONG_OPERATION.getCode();
+            }
+        }
+    }
+
+    /**
+     * @param column index of scratch column, less than SCRATCH_COLUMNS
+     * @return array that fits the biggest group of current batch
+     */
+    int[] getIntScratch(int column) {
+        if (intScratch[column].length < getMaxGroupSize()) {
+            intScratch[column] = new int[getMaxGroupSize()];
+        }
+        return intScratch[column];
+    }
+
+    /**
+     * @param column index of scratch column, less than SCRATCH_COLUMNS
+     * @return array that fits the biggest group of current batch
+     */
+    double[] getDoubleScratch(int column) {
+        if (doubleScratch[column].length < getMaxGroupSize()) {
+            doubleScratch[column] = new double[getMaxGroupSize()];
+        }
+        return doubleScratch[column];
+    }
+
+    /**
+     * @return size of the biggest group
+     */
+    int getMaxGroupSize() {
+        int max = 0;
+        for (OperationType operation : ARITHMETIC_OPERATIONS) {
+            max = Math.max(max, getGroupSize(operation));
+        }
+        return max;
+    }
+
+    /**
+     * @param operation operation of group
+     * @return amount of commands with operation
+     */
+    int getGroupSize(OperationType operation) {
+        return groupStarts[operation.ordinal() + 1] - groupStarts[operation.ordinal()];
+    }
+
+    /**
+     * Copies values of group into the beginning of dst.
+     *
+     * @param operation operation of group
+     * @param column    values of all commands
+     * @param dst       destination
+     */
+    void gather(OperationType operation, int[] column, int[] dst) {
+        int from = groupStarts[operation.ordinal()];
+        int length = getGroupSize(operation);
+        if (isContiguous(from, length)) {
+            System.arraycopy(column, order[from], dst, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dst[i] = column[order[from + i]];
+            }
+        }
+    }
+
+    /**
+     * Copies values of group into the beginning of dst.
+     *
+     * @param operation operation of group
+     * @param column    values of all commands
+     * @param dst       destination
+     */
+    void gather(OperationType operation, double[] column, double[] dst) {
+        int from = groupStarts[operation.ordinal()];
+        int length = getGroupSize(operation);
+        if (isContiguous(from, length)) {
+            System.arraycopy(column, order[from], dst, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dst[i] = column[order[from + i]];
+            }
+        }
+    }
+
+    /**
+     * Copies values of group from the beginning of src to their commands.
+     *
+     * @param operation operation of group
+     * @param src       values of group
+     * @param column    values of all commands
+     */
+    void scatter(OperationType operation, int[] src, int[] column) {
+        int from = groupStarts[operation.ordinal()];
+        int length = getGroupSize(operation);
+        if (isContiguous(from, length)) {
+            System.arraycopy(src, 0, column, order[from], length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                column[order[from + i]] = src[i];
+            }
+        }
+    }
+
+    /**
+     * Copies values of group from the beginning of src to their commands.
+     *
+     * @param operation operation of group
+     * @param src       values of group
+     * @param column    values of all commands
+     */
+    void scatter(OperationType operation, double[] src, double[] column) {
+        int from = groupStarts[operation.ordinal()];
+        int length = getGroupSize(operation);
+        if (isContiguous(from, length)) {
+            System.arraycopy(src, 0, column, order[from], length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                column[order[from + i]] = src[i];
+            }
+        }
+    }
+
+    /**
+     * Sets error for commands of group whose value is zero.
+     *
+     * @param operation operation of group
+     * @param values    values of group
+     * @param error     error to set
+     */
+    void reportZeros(OperationType operation, int[] values, CalculationError error) {
+        int from = groupStarts[operation.ordinal()];
+        for (int i = 0; i < getGroupSize(operation); i++) {
+            if (values[i] == 0) {
+                errors[order[from + i]] = error.getCode();
+            }
+        }
+    }
+
+    /**
+     * Sets error for commands of group whose value is zero.
+     *
+     * @param operation operation of group
+     * @param values    values of group
+     * @param error     error to set
+     */
+    void reportZeros(OperationType operation, double[] values, CalculationError error) {
+        int from = groupStarts[operation.ordinal()];
+        for (int i = 0; i < getGroupSize(operation); i++) {
+            if (values[i] == 0) {
+                errors[order[from + i]] = error.getCode();
+            }
+        }
+    }
+
+    /**
+     * @param from   start of group in order
+     * @param length size of group
+     * @return true if group is a range of commands, so it can be copied at once
+     */
+    private boolean isContiguous(int from, int length) {
+        return length == 0 || order[from + length - 1] - order[from] == length - 1;
+    }
+}
+
+/**
+ * Bounded cache of command results, shared by evaluators of all threads.
+ * Entries are split into segments by hash, every segment is a LinkedHashMap in access order,
+ * so threads contend only within a segment. Amount of entries is counted over all segments, and when it
+ * exceeds the max, the least recently used entry of the segment that has just grown is dropped.
+ * Results keep their kind, so cached numbers are printed the same as computed ones.
+ */
+final class ResultCache {
+    /**
+     * Default max length of operands and of result that are cached.
+     */
+    static final int DEFAULT_MAX_LENGTH = 256;
+    /**
+     * Amount of segments, power of two.
+     */
+    private static final int SEGMENTS = 64;
+
+    /**
+     * Segments of cache, every one is guarded by itself.
+     */
+    private final List<Map<Key, CalculationResult>> segments = new ArrayList<>(SEGMENTS);
+    /**
+     * Max amount of cached results.
+     */
+    private final int maxSize;
+    /**
+     * Amount of cached results in all segments.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+    /**
+     * Max total length of operands and max length of result that are cached.
+     */
+    private final int maxLength;
+    /**
+     * Amount of found results.
+     */
+    private final LongAdder hits = new LongAdder();
+    /**
+     * Amount of missed results.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxEntries      max amount of cached results
+     * @param maxResultLength max total length of operands and max length of result that are cached
+     */
+    ResultCache(int maxEntries, int maxResultLength) {
+        this.maxLength = maxResultLength;
+        this.maxSize = maxEntries;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new LinkedHashMap<>(16, 0.75f, true));
+        }
+    }
+
+    /**
+     * Checks if command with operands of given length may be cached, so that its key is worth building.
+     *
+     * @param operandsLength total length of operands
+     * @return true if command may be cached
+     */
+    boolean accepts(int operandsLength) {
+        return operandsLength <= maxLength;
+    }
+
+    /**
+     * Finds result of command.
+     *
+     * @param key    command
+     * @param result storage for found result
+     * @return true if result was found
+     */
+    boolean lookup(Key key, CalculationResult result) {
+        Map<Key, CalculationResult> segment = segments.get(segmentIndex(key));
+        CalculationResult entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+        }
+        if (entry == null) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        result.set(entry);
+        return true;
+    }
+
+    /**
+     * Stores result of command, if it is not too long.
+     *
+     * @param key    command
+     * @param result result of command
+     */
+    void store(Key key, CalculationResult result) {
+        CalculationResult entry = new CalculationResult();
+        switch (result.getKind()) {
+            case ERROR:
+            case INTEGER:
+            case REAL:  // printed numbers of primitive kinds are always short
+                entry.set(result);
+                break;
+            case TEXT:
+                if ((result.getText() instanceof Rope ? ((Rope) result.getText()).getLength()
+                        : result.getText().length()) > maxLength) {
+                    return;  // checked before building, because long rope is never built in memory
+                }
+                entry.setText(result.getText().toString());  // the result may be a reused builder
+                break;
+            default:
+                if (result.toString().length() > maxLength) {
+                    return;
+                }
+                entry.set(result);
+        }
+        int index = segmentIndex(key);
+        Map<Key, CalculationResult> segment = segments.get(index);
+        synchronized (segment) {
+            if (segment.put(key, entry) != null) {
+                return;
+            }
+        }
+        if (size.incrementAndGet() > maxSize) {
+            evict(index);
+        }
+    }
+
+    /**
+     * Drops the least recently used entry of segment, or of the next nonempty segment if the segment
+     * holds only the entry that has just been stored.
+     *
+     * @param index index of segment that has grown
+     */
+    private void evict(int index) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            Map<Key, CalculationResult> segment = segments.get((index + i) & (SEGMENTS - 1));
+            synchronized (segment) {
+                if (segment.size() > (i == 0 ? 1 : 0)) {
+                    Iterator<CalculationResult> eldest = segment.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                    size.decrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return amount of found results
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return amount of missed results
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    private static int segmentIndex(Key key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (SEGMENTS - 1);
+    }
+
+    /**
+     * Command that is used as a key of cache.
+     */
+    static final class Key {
+        /**
+         * Type of calculator.
+         */
+        private final CalculatorType calculatorType;
+        /**
+         * Operation of command.
+         */
+        private final OperationType operation;
+        /**
+         * 1st argument.
+         */
+        private final String a;
+        /**
+         * 2nd argument.
+         */
+        private final String b;
+        /**
+         * Precomputed hash code.
+         */
+        private final int hash;
+
+        /**
+         * @param type   type of calculator
+         * @param op     operation of command
+         * @param first  1st argument
+         * @param second 2nd argument
+         */
+        Key(CalculatorType type, OperationType op, String first, String second) {
+            this.calculatorType = type;
+            this.operation = op;
+            this.a = first;
+            this.b = second;
+            this.hash = ((type.hashCode() * 31 + op.hashCode()) * 31 + first.hashCode()) * 31 + second.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && calculatorType == key.calculatorType && operation == key.operation
+                    && a.equals(key.a) && b.equals(key.b);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
+
+/**
+ * Compact binary encoding of command stream and its converter from text.
+ * File starts with MAGIC, VERSION and ordinal of CalculatorType, then records follow until the end of file.
+ * Record starts with a header byte: bits 0-2 hold ordinal of OperationType, AGGREGATE or MALFORMED,
+ * RAW_A and RAW_B flags show that operand is stored as text. Then operands follow, except for INCORRECT
+ * and MALFORMED records: text operand is varint length and UTF-8 bytes, numeric operand of INTEGER is
+ * zigzag varint and of DOUBLE is 8 bytes of IEEE 754 bits. AGGREGATE header is followed by ordinal of
+ * AggregateType, varint amount of operands and every operand as text.
+ */
+final class BinaryCommandFormat {
+    /**
+     * First bytes of file, "CALC" in ASCII.
+     */
+    static final int MAGIC = 0x43414C43;
+    /**
+     * Version of format. Files of version 1 have no aggregate records, so they are read as they are.
+     */
+    static final byte VERSION = 2;
+    /**
+     * Mask of operation in record header.
+     */
+    static final int OPERATION_MASK = 0x07;
+    /**
+     * Operation of aggregate command.
+     */
+    static final int AGGREGATE = 0x05;
+    /**
+     * Operation of command whose operands are missing.
+     */
+    static final int MALFORMED = 0x07;
+    /**
+     * Flag of record header, 1st operand is text.
+     */
+    static final int RAW_A = 0x40;
+    /**
+     * Flag of record header, 2nd operand is text.
+     */
+    static final int RAW_B = 0x80;
+
+    private BinaryCommandFormat() { }
+
+    /**
+     * Converts commands in text format into binary format.
+     *
+     * @param reader text input: calculator type, amount of commands, commands
+     * @param path   binary output, it is created only after header of text input is checked
+     * @throws IOException              if input or output failed
+     * @throws IllegalArgumentException if header of text input is wrong
+     */
+    static void convert(CommandReader reader, Path path) throws IOException {
+        CommandLine line = new CommandLine();
+        CalculatorType calculatorType = reader.readLine(line) ? CalculatorType.parse(line.toString())
+                : CalculatorType.INCORRECT;
+        if (calculatorType == CalculatorType.INCORRECT) {
+            throw new IllegalArgumentException("Wrong calculator type");
+        }
+        long commandsNumber = reader.readLine(line) ? StreamSession.parseCommandsNumber(line) : -1;
+        if (commandsNumber < 1) {
+            throw new IllegalArgumentException("Amount of commands is Not a Number");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path),
+                1 << 16))) {
+            writeCommands(reader, line, calculatorType, commandsNumber, out);
+        }
+    }
+
+    private static void writeCommands(CommandReader reader, CommandLine line, CalculatorType calculatorType,
+                                      long commandsNumber, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(calculatorType.ordinal());
+        CalculationResult value = new CalculationResult();
+        for (long i = 0; i < commandsNumber && reader.readLine(line); i++) {
+            int tokenCount = line.getTokenCount();
+            AggregateType aggregate = AggregateType.parse(line, line.getTokenStart(0), line.getTokenEnd(0));
+            if (aggregate != null) {  // operands are kept as text, they are lexed by AggregateReducer
+                out.writeByte(AGGREGATE);
+                out.writeByte(aggregate.ordinal());
+                writeVarint(out, tokenCount - 1);
+                for (int token = 1; token < tokenCount; token++) {
+                    writeOperand(out, calculatorType, line, token, false, value);
+                }
+                continue;
+            }
+            OperationType operation = OperationType.parse(line, line.getTokenStart(0), line.getTokenEnd(0));
+            if (operation == OperationType.INCORRECT) {  // operands do not matter
+                out.writeByte(operation.ordinal());
+                continue;
+            }
+            if (tokenCount < 3) {
+                out.writeByte(MALFORMED);
+                continue;
+            }
+            // numbers are stored as numbers only if both are valid, so that errors are reported from text
+            boolean numeric = isNumeric(calculatorType, line, 1, value) && isNumeric(calculatorType, line, 2, value);
+            out.writeByte(operation.ordinal() | (numeric ? 0 : RAW_A | RAW_B));
+            writeOperand(out, calculatorType, line, 1, numeric, value);
+            writeOperand(out, calculatorType, line, 2, numeric, value);
+        }
+    }
+
+    private static boolean isNumeric(CalculatorType type, CommandLine line, int token, CalculationResult value) {
+        int from = line.getTokenStart(token);
+        int to = line.getTokenEnd(token);
+        switch (type) {
+            case INTEGER:
+                return NumberLexer.parseInt(line, from, to, value);
+            case DOUBLE:
+                return NumberLexer.parseDouble(line, from, to, value);
+            default:
+                return false;
+        }
+    }
+
+    private static void writeOperand(DataOutputStream out, CalculatorType type, CommandLine line, int token,
+                                     boolean numeric, CalculationResult value) throws IOException {
+        if (!numeric) {
+            byte[] text = line.getToken(token).getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, text.length);
+            out.write(text);
+        } else if (type == CalculatorType.INTEGER) {
+            isNumeric(type, line, token, value);
+            writeVarint(out, (value.getInt() << 1) ^ (value.getInt() >> 31));  // zigzag, small negatives are short
+        } else {
+            isNumeric(type, line, token, value);
+            out.writeLong(Double.doubleToRawLongBits(value.getDouble()));
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
+
+/**
+ * Memory-mapped binary command file, read through windows of up to 1 GiB.
+ */
+final class MappedCommandInput implements Closeable {
+    /**
+     * Max size of mapped window.
+     */
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    /**
+     * Channel of file.
+     */
+    private final FileChannel channel;
+    /**
+     * Size of file.
+     */
+    private final long size;
+    /**
+     * Currently mapped part of file.
+     */
+    private MappedByteBuffer window;
+    /**
+     * Position of window in file.
+     */
+    private long windowStart = 0;
+
+    /**
+     * @param path path of file
+     * @throws IOException if file can not be opened
+     */
+    MappedCommandInput(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        map(0);
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+    }
+
+    /**
+     * @return true if not everything is read
+     */
+    boolean hasRemaining() {
+        return windowStart + window.position() < size;
+    }
+
+    /**
+     * Moves window so that given amount of bytes can be read from it, if file has them.
+     *
+     * @param bytes amount of bytes
+     * @throws IOException if file can not be mapped
+     */
+    private void ensure(int bytes) throws IOException {
+        if (window.remaining() < bytes && windowStart + window.limit() < size) {
+            map(windowStart + window.position());
+        }
+    }
+
+    /**
+     * @return next byte
+     * @throws IOException if file is broken
+     */
+    int readByte() throws IOException {
+        ensure(1);
+        return window.get() & 0xFF;
+    }
+
+    /**
+     * @return next 8 bytes as long
+     * @throws IOException if file is broken
+     */
+    long readLong() throws IOException {
+        ensure(Long.BYTES);
+        return window.getLong();
+    }
+
+    /**
+     * @return next varint
+     * @throws IOException if file is broken
+     */
+    int readVarint() throws IOException {
+        ensure(5);
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int part = window.get();
+            value |= (part & 0x7F) << shift;
+            if (part >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Broken binary command file");
+    }
+
+    /**
+     * Copies next bytes to the end of line.
+     *
+     * @param line   destination
+     * @param amount amount of bytes
+     * @throws IOException if file is broken
+     */
+    void readBytes(CommandLine line, int amount) throws IOException {
+        ensure(amount);
+        line.append(window, amount);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+/**
+ * Evaluates commands of binary command file. Numbers of INTEGER and DOUBLE records are passed to
+ * calculators as they are, only text operands are copied. Aggregate records are reduced by AggregateReducer
+ * in current thread.
+ */
+final class BinarySession {
+    /**
+     * Operations indexed by ordinal.
+     */
+    private static final OperationType[] OPERATIONS = OperationType.values();
+    /**
+     * Aggregates indexed by ordinal.
+     */
+    private static final AggregateType[] AGGREGATES = AggregateType.values();
+    /**
+     * Separator of tokens of rebuilt aggregate command.
+     */
+    private static final byte[] SEPARATOR = {' '};
+
+    /**
+     * Implementations of calculator, indexed by CalculatorType ordinal.
+     */
+    private final Calculator[] calculators;
+    /**
+     * Input of session.
+     */
+    private final MappedCommandInput input;
+    /**
+     * Output of session.
+     */
+    private final ResultWriter writer;
+    /**
+     * Storage for text operands.
+     */
+    private final CommandLine line = new CommandLine();
+    /**
+     * Storage for result of current command.
+     */
+    private final CalculationResult result = new CalculationResult();
+    /**
+     * Reducer of aggregate records, created when type of calculator is read.
+     */
+    private AggregateReducer reducer;
+
+    /**
+     * @param calculatorsArray implementations of calculator, indexed by CalculatorType ordinal
+     * @param commandInput     input of session
+     * @param resultWriter     output of session
+     */
+    BinarySession(Calculator[] calculatorsArray, MappedCommandInput commandInput, ResultWriter resultWriter) {
+        this.calculators = calculatorsArray;
+        this.input = commandInput;
+        this.writer = resultWriter;
+    }
+
+    /**
+     * Evaluates all commands.
+     *
+     * @throws IOException if input is broken or output failed
+     */
+    void run() throws IOException {
+        try {
+            for (int i = Integer.BYTES - 1; i >= 0; i--) {
+                if (!input.hasRemaining() || input.readByte() != ((BinaryCommandFormat.MAGIC >>> (8 * i)) & 0xFF)) {
+                    throw new IOException("Not a binary command file");
+                }
+            }
+            int version = input.readByte();
+            if (version < 1 || version > BinaryCommandFormat.VERSION) {
+                throw new IOException("Unsupported version of binary command file");
+            }
+            int typeOrdinal = input.readByte();
+            if (typeOrdinal >= CalculatorType.INCORRECT.ordinal()) {
+                writer.writeLine("Wrong calculator type");
+                return;
+            }
+            CalculatorType calculatorType = CalculatorType.values()[typeOrdinal];
+            Calculator calculator = calculators[typeOrdinal];
+            reducer = new AggregateReducer(calculatorType, calculator, null);
+            if (calculator instanceof IntegerCalculator) {
+                runIntegers(calculatorType, (IntegerCalculator) calculator);
+            } else if (calculatorType == CalculatorType.DOUBLE) {
+                runDoubles((DoubleCalculator) calculator);
+            } else {
+                while (input.hasRemaining()) {
+                    writer.writeLine(evaluate(calculatorType, calculator, input.readByte()));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Broken binary command file", e);
+        } finally {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Evaluates records of INTEGER file. Numeric records are decoded and evaluated by a switch over
+     * operation, so calls of calculator are not virtual and are inlined, other records are evaluated
+     * by evaluate().
+     *
+     * @param calculatorType type of calculator
+     * @param calculator     calculator of records
+     * @throws IOException if input is broken or output failed
+     */
+    private void runIntegers(CalculatorType calculatorType, IntegerCalculator calculator) throws IOException {
+        while (input.hasRemaining()) {
+            int header = input.readByte();
+            int opcode = header & BinaryCommandFormat.OPERATION_MASK;
+            if ((header & (BinaryCommandFormat.RAW_A | BinaryCommandFormat.RAW_B)) != 0
+                    || opcode >= OperationType.INCORRECT.ordinal()) {
+                writer.writeLine(evaluate(calculatorType, calculator, header));
+                continue;
+            }
+            int a = readZigZag();
+            int b = readZigZag();
+            switch (OPERATIONS[opcode]) {
+                case ADDITION:
+                    writer.writeLine(calculator.add(a, b, result));
+                    break;
+                case SUBTRACTION:
+                    writer.writeLine(calculator.subtract(a, b, result));
+                    break;
+                case MULTIPLICATION:
+                    writer.writeLine(calculator.multiply(a, b, result));
+                    break;
+                default:
+                    writer.writeLine(calculator.divide(a, b, result));
+            }
+        }
+    }
+
+    /**
+     * Evaluates records of DOUBLE file, the same way as runIntegers() does.
+     *
+     * @param calculator calculator of records
+     * @throws IOException if input is broken or output failed
+     */
+    private void runDoubles(DoubleCalculator calculator) throws IOException {
+        while (input.hasRemaining()) {
+            int header = input.readByte();
+            int opcode = header & BinaryCommandFormat.OPERATION_MASK;
+            if ((header & (BinaryCommandFormat.RAW_A | BinaryCommandFormat.RAW_B)) != 0
+                    || opcode >= OperationType.INCORRECT.ordinal()) {
+                writer.writeLine(evaluate(CalculatorType.DOUBLE, calculator, header));
+                continue;
+            }
+            double a = Double.longBitsToDouble(input.readLong());
+            double b = Double.longBitsToDouble(input.readLong());
+            switch (OPERATIONS[opcode]) {
+                case ADDITION:
+                    writer.writeLine(calculator.add(a, b, result));
+                    break;
+                case SUBTRACTION:
+                    writer.writeLine(calculator.subtract(a, b, result));
+                    break;
+                case MULTIPLICATION:
+                    writer.writeLine(calculator.multiply(a, b, result));
+                    break;
+                default:
+                    writer.writeLine(calculator.divide(a, b, result));
+            }
+        }
+    }
+
+    private CalculationResult evaluate(CalculatorType calculatorType, Calculator calculator, int header)
+            throws IOException {
+        int opcode = header & BinaryCommandFormat.OPERATION_MASK;
+        if (opcode == BinaryCommandFormat.AGGREGATE) {
+            return reduce();
+        }
+        if (opcode == BinaryCommandFormat.MALFORMED) {
+            return result.setError(CalculationError.WRONG_ARGUMENT);
+        }
+        if (opcode >= OperationType.INCORRECT.ordinal()) {
+            return result.setError(CalculationError.WRONG_OPERATION);
+        }
+        OperationType operation = OperationType.values()[opcode];
+        boolean rawA = (header & BinaryCommandFormat.RAW_A) != 0;
+        boolean rawB = (header & BinaryCommandFormat.RAW_B) != 0;
+        if (!rawA && !rawB && calculator instanceof IntegerCalculator) {
+            int a = readZigZag();
+            return operation.eval((IntegerCalculator) calculator, a, readZigZag(), result);
+        }
+        if (!rawA && !rawB && calculatorType == CalculatorType.DOUBLE) {
+            double a = Double.longBitsToDouble(input.readLong());
+            return operation.eval((DoubleCalculator) calculator, a, Double.longBitsToDouble(input.readLong()), result);
+        }
+        // text operands are evaluated as in text format
+        line.clear();
+        readOperand(calculatorType, rawA);
+        int split = line.length();
+        readOperand(calculatorType, rawB);
+        return calculator.evaluate(operation, line, 0, split, line, split, line.length(), result);
+    }
+
+    /**
+     * Rebuilds aggregate command from its record and reduces it.
+     *
+     * @return result of command
+     * @throws IOException if input is broken
+     */
+    private CalculationResult reduce() throws IOException {
+        int ordinal = input.readByte();
+        if (ordinal >= AGGREGATES.length) {
+            throw new IOException("Broken binary command file");
+        }
+        AggregateType aggregate = AGGREGATES[ordinal];
+        int count = input.readVarint();
+        line.clear();
+        byte[] keyword = aggregate.getKeyword().getBytes(StandardCharsets.US_ASCII);
+        line.append(keyword, 0, keyword.length);
+        for (int i = 0; i < count; i++) {
+            line.append(SEPARATOR, 0, SEPARATOR.length);
+            input.readBytes(line, input.readVarint());
+        }
+        return reducer.reduce(aggregate, line, result);
+    }
+
+    private void readOperand(CalculatorType calculatorType, boolean raw) throws IOException {
+        String number;
+        if (raw) {
+            input.readBytes(line, input.readVarint());
+            return;
+        } else if (calculatorType == CalculatorType.INTEGER) {
+            number = Integer.toString(readZigZag());
+        } else if (calculatorType == CalculatorType.DOUBLE) {
+            // only older files mix raw and numeric doubles, the number is passed as the other operand, in plain
+            // notation because the lexer rejects exponents, and zero keeps its sign
+            double value = Double.longBitsToDouble(input.readLong());
+            number = value == 0 ? Double.toString(value) : BigDecimal.valueOf(value).toPlainString();
+        } else {
+            throw new IOException("Broken binary command file");
+        }
+        byte[] bytes = number.getBytes(StandardCharsets.US_ASCII);
+        line.append(bytes, 0, bytes.length);
+    }
+
+    private int readZigZag() throws IOException {
+        int value = input.readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
+
+/**
+ * Benchmarks of every calculator and operation, including error paths, and of the whole
+ * parse, evaluate and print pipeline over generated inputs of increasing size.
+ * Every benchmark is run for warmup rounds first, then time and allocated bytes per operation are measured.
+ */
+final class CalculatorBenchmark {
+    /**
+     * Amount of rounds that are not measured.
+     */
+    private static final int WARMUP_ROUNDS = 5;
+    /**
+     * Amount of measured rounds.
+     */
+    private static final int MEASURED_ROUNDS = 5;
+    /**
+     * Min duration of one round.
+     */
+    private static final long ROUND_NANOS = 200_000_000L;
+    /**
+     * Amounts of commands in generated inputs of pipeline benchmarks.
+     */
+    private static final int[] PIPELINE_SIZES = {1_000, 10_000, 100_000, 1_000_000};
+    /**
+     * Amount of different doubles in formatting benchmarks.
+     */
+    private static final int FORMATTED_DOUBLES = 1 << 12;
+    /**
+     * Batch sizes of processor in flow benchmarks.
+     */
+    private static final int[] FLOW_BATCH_SIZES = {1, 16, 256};
+    /**
+     * Amount of commands in columnar benchmarks.
+     */
+    private static final int COLUMN_COMMANDS = 1 << 12;
+    /**
+     * Amount of operands of aggregate command in aggregate benchmarks.
+     */
+    private static final int AGGREGATE_OPERANDS = 100_000;
+    /**
+     * Buffer capacity of publishers in flow benchmarks.
+     */
+    private static final int FLOW_BUFFER_CAPACITY = 256;
+    /**
+     * Time spent by slow subscriber on every result.
+     */
+    private static final long SLOW_SUBSCRIBER_NANOS = 2_000;
+    /**
+     * Seed of generated inputs, fixed so that runs are comparable.
+     */
+    private static final long SEED = 42;
+
+    /**
+     * Results of benchmarks are mixed here, so that JIT can not drop the benchmarked code.
+     */
+    private static volatile int sink;
+
+    /**
+     * Counter of bytes allocated by threads, null if JVM does not support it.
+     */
+    private final com.sun.management.ThreadMXBean allocationCounter;
+    /**
+     * Destination of report.
+     */
+    private final PrintStream out;
+    /**
+     * Max amount of commands that were submitted to flow, but not received by subscriber.
+     */
+    private long maxInFlight;
+
+    /**
+     * Benchmarked code.
+     */
+    private interface Workload {
+        /**
+         * @param iterations amount of times to run the code
+         * @return any value computed from results
+         * @throws IOException if input or output failed
+         */
+        int run(int iterations) throws IOException;
+    }
+
+    /**
+     * @param output destination of report
+     */
+    CalculatorBenchmark(PrintStream output) {
+        this.out = output;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            this.allocationCounter = (com.sun.management.ThreadMXBean) bean;
+            allocationCounter.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            this.allocationCounter = null;
+        }
+    }
+
+    /**
+     * Runs benchmarks whose names contain the filter.
+     *
+     * @param filter part of benchmark name, empty string to run everything
+     * @throws IOException if input or output failed
+     */
+    void run(String filter) throws IOException {
+        Calculator[] calculators = new Calculator[] {
+            new IntegerCalculator(), new DoubleCalculator(), new StringCalculator(), new BigIntegerCalculator(),
+            new DecimalCalculator(DecimalCalculator.DEFAULT_SCALE, DecimalCalculator.DEFAULT_ROUNDING),
+        };
+        out.printf("%-44s %12s %10s %12s %12s%n", "Benchmark", "ns/op", "error", "B/op", "MB/s alloc");
+        for (CalculatorType type : CalculatorType.values()) {
+            if (type == CalculatorType.INCORRECT) {
+                continue;
+            }
+            Calculator calculator = calculators[type.ordinal()];
+            String[] operands = validOperands(type);
+            for (OperationType operation : OperationType.values()) {
+                measure(filter, "eval/" + type + "/" + operation, 1,
+                        evaluation(calculator, operation, operands[0], operands[1]));
+            }
+            if (type == CalculatorType.INTEGER) {  // adaptive calculator on small and on overflowing numbers
+                Calculator adaptive = new AdaptiveIntegerCalculator();
+                for (OperationType operation : ColumnarBatch.ARITHMETIC_OPERATIONS) {
+                    measure(filter, "eval/ADAPTIVE_INTEGER/" + operation, 1,
+                            evaluation(adaptive, operation, operands[0], operands[1]));
+                    measure(filter, "eval/ADAPTIVE_INTEGER/" + operation + "/promoted", 1,
+                            evaluation(adaptive, operation, "9223372036854775807", "-9223372036854775808"));
+                }
+            }
+            if (type == CalculatorType.DECIMAL) {  // the same operations with BigDecimal, for comparison
+                for (OperationType operation : ColumnarBatch.ARITHMETIC_OPERATIONS) {
+                    measure(filter, "eval/BigDecimal/" + operation, 1,
+                            bigDecimalEvaluation(operation, operands[0], operands[1]));
+                }
+            }
+            measure(filter, "eval/" + type + "/WRONG_ARGUMENT", 1,
+                    evaluation(calculator, OperationType.ADDITION, operands[0], "1x"));
+            if (type != CalculatorType.STRING) {
+                measure(filter, "eval/" + type + "/DIVISION_BY_ZERO", 1,
+                        evaluation(calculator, OperationType.DIVISION, operands[0], "0"));
+            }
+        }
+        double[] doubles = new double[FORMATTED_DOUBLES];
+        Random random = new Random(SEED);
+        for (int i = 0; i < doubles.length; i++) {  // results of typical calculations and arbitrary bit patterns
+            doubles[i] = i % 2 == 0 ? (random.nextInt(2_000_001) - 1_000_000) / 1000.0 * random.nextDouble()
+                    : Double.longBitsToDouble(random.nextLong());
+        }
+        measure(filter, "format/Double.toString", 1, iterations -> {
+            int result = 0;
+            for (int i = 0; i < iterations; i++) {
+                result += Double.toString(doubles[i % doubles.length]).length();
+            }
+            return result;
+        });
+        byte[] formatted = new byte[DoubleFormatter.MAX_LENGTH];
+        if (DoubleFormatter.ENABLED) {
+            measure(filter, "format/DoubleFormatter", 1, iterations -> {
+                int result = 0;
+                for (int i = 0; i < iterations; i++) {
+                    result += DoubleFormatter.format(doubles[i % doubles.length], formatted, 0);
+                }
+                return result;
+            });
+        } else if ("format/DoubleFormatter".contains(filter)) {  // it would measure Double.toString once more
+            out.printf("%-44s disabled: Double.toString of Java %s is not shortest, it is used as is%n",
+                    "format/DoubleFormatter", System.getProperty("java.specification.version"));
+        }
+        byte[] operations = new byte[COLUMN_COMMANDS];
+        int[] ints = new int[COLUMN_COMMANDS];
+        double[] reals = new double[COLUMN_COMMANDS];
+        for (int i = 0; i < COLUMN_COMMANDS; i++) {  // mixed operations, so that groups are gathered
+            operations[i] = (byte) random.nextInt(ColumnarBatch.ARITHMETIC_OPERATIONS.length);
+            ints[i] = random.nextInt(2_000_001) - 1_000_000;
+            reals[i] = ints[i] / 1000.0;
+        }
+        IntegerCalculator integerCalculator = (IntegerCalculator) calculators[CalculatorType.INTEGER.ordinal()];
+        DoubleCalculator doubleCalculator = (DoubleCalculator) calculators[CalculatorType.DOUBLE.ordinal()];
+        ColumnarBatch batch = new ColumnarBatch();
+        int[] intResults = new int[COLUMN_COMMANDS];
+        double[] realResults = new double[COLUMN_COMMANDS];
+        byte[] errors = new byte[COLUMN_COMMANDS];
+        measure(filter, "columns/INTEGER", COLUMN_COMMANDS, iterations -> {
+            for (int i = 0; i < iterations; i++) {
+                integerCalculator.evaluateColumns(batch, operations, ints, ints, intResults, errors);
+            }
+            return intResults[0];
+        });
+        measure(filter, "columns/INTEGER/new-batch", COLUMN_COMMANDS, iterations -> {
+            for (int i = 0; i < iterations; i++) {
+                integerCalculator.evaluateColumns(operations, ints, ints, intResults, errors);
+            }
+            return intResults[0];
+        });
+        measure(filter, "columns/DOUBLE", COLUMN_COMMANDS, iterations -> {
+            for (int i = 0; i < iterations; i++) {
+                doubleCalculator.evaluateColumns(batch, operations, reals, reals, realResults, errors);
+            }
+            return (int) realResults[0];
+        });
+        measure(filter, "columns/DOUBLE/new-batch", COLUMN_COMMANDS, iterations -> {
+            for (int i = 0; i < iterations; i++) {
+                doubleCalculator.evaluateColumns(operations, reals, reals, realResults, errors);
+            }
+            return (int) realResults[0];
+        });
+        for (int batchSize : FLOW_BATCH_SIZES) {
+            String name = "flow/slow-subscriber/batch=" + batchSize;
+            maxInFlight = 0;
+            // threads of flow are started and stopped by every call, so their allocations are not counted
+            measure(filter, name, 1, slowSubscriberFlow(calculators, batchSize), false);
+            if (name.contains(filter)) {
+                out.printf("%-44s max in flight: %d%n", name, maxInFlight);
+            }
+        }
+        for (CalculatorType type : CalculatorType.values()) {
+            if (type == CalculatorType.INCORRECT) {
+                continue;
+            }
+            for (int size : PIPELINE_SIZES) {
+                String name = "pipeline/" + type + "/" + size;
+                if (name.contains(filter)) {  // inputs are big, so they are generated only when needed
+                    measure(filter, name, size, pipeline(calculators, generate(type, size)));
+                }
+                String binaryName = "binary/" + type + "/" + size;
+                if (binaryName.contains(filter)) {  // the same input as of pipeline, converted into a file
+                    Path path = Files.createTempFile("commands", ".bin");
+                    try {
+                        BinaryCommandFormat.convert(new CommandReader(new ByteArrayInputStream(generate(type, size)),
+                                CommandReader.DEFAULT_CAPACITY), path);
+                        measure(filter, binaryName, size, binaryPipeline(calculators, path));
+                    } finally {
+                        Files.delete(path);
+                    }
+                }
+            }
+        }
+        for (CalculatorType type : new CalculatorType[] {CalculatorType.INTEGER, CalculatorType.DOUBLE,
+            CalculatorType.DECIMAL}) {
+            String name = "aggregate/" + type + "/sum";
+            if (name.contains(filter)) {  // per operand, one command reduces all of them
+                CommandLine line = aggregateCommand(type);
+                Calculator calculator = calculators[type.ordinal()];
+                measure(filter, name, AGGREGATE_OPERANDS, aggregation(type, calculator, line, null));
+                measure(filter, name + "/parallel", AGGREGATE_OPERANDS,
+                        aggregation(type, calculator, line, ForkJoinPool.commonPool()));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @param type type of calculator
+     * @return two valid operands of the type, the 2nd one is also a valid count for string multiplication
+     */
+    private static String[] validOperands(CalculatorType type) {
+        switch (type) {
+            case INTEGER:
+                return new String[] {"123456", "789"};
+            case DOUBLE:
+                return new String[] {"1234.5678", "0.25"};
+            case STRING:
+                return new String[] {"abcdef", "3"};
+            case DECIMAL:
+                return new String[] {"1234.56", "0.25"};
+            default:
+                return new String[] {"123456789012345678901234567890123456789", "98765432109876543210987"};
+        }
+    }
+
+    /**
+     * Baseline for DECIMAL calculator: parsing, evaluation and printing with BigDecimal.
+     */
+    private static Workload bigDecimalEvaluation(OperationType operation, String a, String b) {
+        int scale = DecimalCalculator.DEFAULT_SCALE;
+        RoundingMode rounding = DecimalCalculator.DEFAULT_ROUNDING;
+        return iterations -> {
+            int result = 0;
+            for (int i = 0; i < iterations; i++) {
+                BigDecimal c1 = new BigDecimal(a).setScale(scale, rounding);
+                BigDecimal c2 = new BigDecimal(b).setScale(scale, rounding);
+                BigDecimal value;
+                switch (operation) {
+                    case ADDITION:
+                        value = c1.add(c2);
+                        break;
+                    case SUBTRACTION:
+                        value = c1.subtract(c2);
+                        break;
+                    case MULTIPLICATION:
+                        value = c1.multiply(c2).setScale(scale, rounding);
+                        break;
+                    default:
+                        value = c1.divide(c2, scale, rounding);
+                }
+                result += value.toPlainString().length();
+            }
+            return result;
+        };
+    }
+
+    private static Workload evaluation(Calculator calculator, OperationType operation, String a, String b) {
+        return iterations -> {
+            int result = 0;
+            for (int i = 0; i < iterations; i++) {
+                result += operation.eval(calculator, a, b).length();
+            }
+            return result;
+        };
+    }
+
+    private static Workload aggregation(CalculatorType type, Calculator calculator, CommandLine line,
+                                        ForkJoinPool pool) {
+        CommandEvaluator evaluator = new CommandEvaluator(type, calculator, null, pool);
+        return iterations -> {
+            int result = 0;
+            for (int i = 0; i < iterations; i++) {
+                result += evaluator.evaluate(line).toString().length();
+            }
+            return result;
+        };
+    }
+
+    /**
+     * @param type calculator type
+     * @return command "sum" with AGGREGATE_OPERANDS random valid operands
+     */
+    private static CommandLine aggregateCommand(CalculatorType type) {
+        Random random = new Random(SEED);
+        StringBuilder command = new StringBuilder(AggregateType.SUM.getKeyword());
+        for (int i = 0; i < AGGREGATE_OPERANDS; i++) {
+            String operand = operand(type, random);
+            while (operand.endsWith("x")) {  // invalid operand would stop reduction of its block
+                operand = operand(type, random);
+            }
+            command.append(' ').append(operand);
+        }
+        byte[] bytes = command.toString().getBytes(StandardCharsets.UTF_8);
+        CommandLine line = new CommandLine();
+        line.append(bytes, 0, bytes.length);
+        return line;
+    }
+
+    private static Workload pipeline(Calculator[] calculators, byte[] input) {
+        return iterations -> {
+            CountingOutputStream output = new CountingOutputStream();
+            for (int i = 0; i < iterations; i++) {
+                new StreamSession(calculators,
+                        new CommandReader(new ByteArrayInputStream(input), CommandReader.DEFAULT_CAPACITY),
+                        new ResultWriter(output, ResultWriter.DEFAULT_CAPACITY), null, null).run();
+            }
+            return (int) output.count;
+        };
+    }
+
+    private static Workload binaryPipeline(Calculator[] calculators, Path path) {
+        return iterations -> {
+            CountingOutputStream output = new CountingOutputStream();
+            for (int i = 0; i < iterations; i++) {
+                try (MappedCommandInput input = new MappedCommandInput(path)) {
+                    new BinarySession(calculators, input, new ResultWriter(output, ResultWriter.DEFAULT_CAPACITY)).run();
+                }
+            }
+            return (int) output.count;
+        };
+    }
+
+    /**
+     * Pushes commands through CalculatorProcessor to subscriber that is slower than the producer,
+     * so throughput is limited by subscriber, and amount of commands in flight is limited by backpressure.
+     */
+    private Workload slowSubscriberFlow(Calculator[] calculators, int batchSize) {
+        CalculatorCommand command = new CalculatorCommand(CalculatorType.INTEGER, OperationType.ADDITION, "12", "34");
+        return iterations -> {
+            ExecutorService executor = Executors.newCachedThreadPool();
+            try {
+                SubmissionPublisher<CalculatorCommand> source = new SubmissionPublisher<>(executor,
+                        FLOW_BUFFER_CAPACITY);
+                CalculatorProcessor processor = new CalculatorProcessor(calculators, executor, FLOW_BUFFER_CAPACITY,
+                        batchSize);
+                SlowSubscriber subscriber = new SlowSubscriber();
+                source.subscribe(processor);
+                processor.subscribe(subscriber);
+                for (int i = 0; i < iterations; i++) {
+                    source.submit(command);  // blocks when the whole flow is full
+                    maxInFlight = Math.max(maxInFlight, i + 1 - subscriber.received.sum());
+                }
+                source.close();
+                subscriber.completion.await();
+                return (int) subscriber.received.sum();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Flow benchmark is interrupted");
+            } finally {
+                executor.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Subscriber that requests results one by one and spends SLOW_SUBSCRIBER_NANOS on each of them.
+     */
+    private static final class SlowSubscriber implements Flow.Subscriber<String> {
+        /**
+         * Amount of received results.
+         */
+        private final LongAdder received = new LongAdder();
+        /**
+         * Released when flow is over.
+         */
+        private final CountDownLatch completion = new CountDownLatch(1);
+        /**
+         * Subscription to processor.
+         */
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription upstream) {
+            subscription = upstream;
+            upstream.request(1);
+        }
+
+        @Override
+        public void onNext(String item) {
+            long end = System.nanoTime() + SLOW_SUBSCRIBER_NANOS;
+            while (System.nanoTime() < end) {  // busy wait, as sleep is much longer than the given time
+                Thread.onSpinWait();
+            }
+            received.increment();
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            completion.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completion.countDown();
+        }
+    }
+
+    /**
+     * Generates input in text format with all operations and about 5% of invalid commands.
+     *
+     * @param type calculator type
+     * @param size amount of commands
+     * @return input encoded in UTF-8
+     */
+    private static byte[] generate(CalculatorType type, int size) {
+        Random random = new Random(SEED);
+        StringBuilder input = new StringBuilder(size * 16).append(type).append('\n').append(size).append('\n');
+        String operations = "+-*/";
+        for (int i = 0; i < size; i++) {
+            char operation = random.nextInt(20) == 0 ? '^' : operations.charAt(random.nextInt(operations.length()));
+            input.append(operation).append(' ').append(operand(type, random)).append(' ');
+            if (type == CalculatorType.STRING && operation == '*') {
+                input.append(random.nextInt(6));
+            } else {
+                input.append(operand(type, random));
+            }
+            input.append('\n');
+        }
+        return input.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String operand(CalculatorType type, Random random) {
+        if (random.nextInt(20) == 0) {
+            return random.nextBoolean() ? "x" : "1x";
+        }
+        switch (type) {
+            case INTEGER:
+                return Integer.toString(random.nextInt(2001) - 1000);
+            case DOUBLE:
+                return Double.toString((random.nextInt(2_000_001) - 1_000_000) / 1000.0);
+            case STRING:
+                return "abcde".substring(random.nextInt(5));
+            case DECIMAL:
+                return BigDecimal.valueOf(random.nextInt(2_000_001) - 1_000_000, 2).toPlainString();
+            default:
+                return new BigInteger(100, random).subtract(BigInteger.ONE.shiftLeft(99)).toString();
+        }
+    }
+
+    /**
+     * Runs benchmark and prints its results.
+     *
+     * @param filter           part of benchmark name, empty string to run everything
+     * @param name             name of benchmark
+     * @param opsPerIteration  amount of operations done by one iteration of workload
+     * @param workload         benchmarked code
+     * @throws IOException if input or output failed
+     */
+    private void measure(String filter, String name, int opsPerIteration, Workload workload) throws IOException {
+        measure(filter, name, opsPerIteration, workload, true);
+    }
+
+    /**
+     * Runs benchmark and prints its results. Allocations are summed over all threads that are alive
+     * at the start or at the end of round, e.g. workers of ForkJoinPool.commonPool().
+     *
+     * @param filter           part of benchmark name, empty string to run everything
+     * @param name             name of benchmark
+     * @param opsPerIteration  amount of operations done by one iteration of workload
+     * @param workload         benchmarked code
+     * @param countAllocations false if workload allocates in threads that it starts and stops itself,
+     *                         so that their allocations can not be counted and "n/a" is printed
+     * @throws IOException if input or output failed
+     */
+    private void measure(String filter, String name, int opsPerIteration, Workload workload,
+                         boolean countAllocations) throws IOException {
+        if (!name.contains(filter)) {
+            return;
+        }
+        int iterations = 1;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            // iterations are adjusted so that one call of workload takes about 1/10 of round
+            long[] stats = runRound(workload, iterations);
+            long nanosPerCall = Math.max(1, stats[0] / (stats[1] / iterations));
+            iterations = (int) Math.max(1, Math.min(Integer.MAX_VALUE, ROUND_NANOS / 10 * iterations / nanosPerCall));
+        }
+        double[] nanosPerOp = new double[MEASURED_ROUNDS];
+        double bytesPerOp = 0;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            long[] stats = runRound(workload, iterations);
+            long ops = stats[1] * opsPerIteration;
+            nanosPerOp[round] = (double) stats[0] / ops;
+            bytesPerOp += stats[2] < 0 || !countAllocations ? Double.NaN : (double) stats[2] / ops / MEASURED_ROUNDS;
+        }
+        double mean = Arrays.stream(nanosPerOp).average().orElse(0);
+        double variance = Arrays.stream(nanosPerOp).map(x -> (x - mean) * (x - mean)).sum() / (MEASURED_ROUNDS - 1);
+        if (Double.isNaN(bytesPerOp)) {
+            out.printf("%-44s %12.1f %10.1f %12s %12s%n", name, mean, Math.sqrt(variance), "n/a", "n/a");
+            return;
+        }
+        double allocationRate = bytesPerOp / mean * 1e9 / (1 << 20);
+        out.printf("%-44s %12.1f %10.1f %12.1f %12.1f%n", name, mean, Math.sqrt(variance), bytesPerOp,
+                allocationRate);
+    }
+
+    /**
+     * Calls workload until round is over.
+     *
+     * @param workload   benchmarked code
+     * @param iterations amount of iterations per call of workload
+     * @return elapsed nanoseconds, amount of iterations and allocated bytes (-1 if unknown)
+     * @throws IOException if input or output failed
+     */
+    private long[] runRound(Workload workload, int iterations) throws IOException {
+        long[][] allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        long total = 0;
+        int result = 0;
+        do {
+            result += workload.run(iterations);
+            total += iterations;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ROUND_NANOS);
+        long[][] allocatedAfter = allocatedBytes();
+        sink += result;
+        return new long[] {elapsed, total, allocatedBetween(allocatedBefore, allocatedAfter)};
+    }
+
+    /**
+     * @return ids of live threads and bytes allocated by each of them so far, null if unknown
+     */
+    private long[][] allocatedBytes() {
+        if (allocationCounter == null) {
+            return null;
+        }
+        long[] ids = allocationCounter.getAllThreadIds();
+        return new long[][] {ids, allocationCounter.getThreadAllocatedBytes(ids)};
+    }
+
+    /**
+     * @param before ids of threads and their allocated bytes at the start of round, null if unknown
+     * @param after  the same at the end of round
+     * @return bytes allocated by all threads during round, -1 if unknown or if a thread ended during round,
+     *         as its allocations are lost
+     */
+    private static long allocatedBetween(long[][] before, long[][] after) {
+        if (before == null || after == null) {
+            return -1;
+        }
+        Map<Long, Long> allocatedAfter = new HashMap<>();
+        for (int i = 0; i < after[0].length; i++) {
+            allocatedAfter.put(after[0][i], after[1][i]);
+        }
+        long total = 0;
+        for (int i = 0; i < before[0].length; i++) {
+            Long bytes = allocatedAfter.remove(before[0][i]);
+            if (bytes == null || bytes < 0 || before[1][i] < 0) {  // thread ended
+                return -1;
+            }
+            total += bytes - before[1][i];
+        }
+        for (long bytes : allocatedAfter.values()) {  // threads started during round
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    /**
+     * Output that drops data and counts its size.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        /**
+         * Amount of written bytes.
+         */
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
+
+/**
+ * Histogram of latencies with log-linear buckets: every power of two is split into SUB_BUCKETS equal parts,
+ * so any recorded value is known with relative error below 1 / SUB_BUCKETS, as in HdrHistogram.
+ * Recording is lock-free and does not allocate.
+ */
+final class LatencyHistogram {
+    /**
+     * Binary logarithm of amount of buckets per power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+    /**
+     * Amount of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Amount of buckets that cover all non-negative long values.
+     */
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * Amount of values in every bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /**
+     * Amount of recorded values.
+     */
+    private final LongAdder totalCount = new LongAdder();
+    /**
+     * Sum of recorded values.
+     */
+    private final LongAdder totalSum = new LongAdder();
+    /**
+     * Max recorded value.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value value to record, negative values are recorded as 0
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(value));
+        totalCount.increment();
+        totalSum.add(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {  // small values are stored exactly
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return amount of recorded values
+     */
+    long getCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * @return mean of recorded values, 0 if nothing is recorded
+     */
+    double getMean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalSum.sum() / count;
+    }
+
+    /**
+     * @return max recorded value
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Finds value below which given part of recorded values lies.
+     *
+     * @param percentile part of values, from 0 to 100
+     * @return highest value of bucket that contains the percentile, 0 if nothing is recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return i + 1 < BUCKETS ? Math.min(lowestValueOf(i + 1) - 1, getMax()) : getMax();
+            }
+        }
+        return 0;
+    }
+}
+
+/**
+ * Counters of commands, errors and latency histograms for every calculator type and operation.
+ * Available through JMX as dynamic MBean, whose attributes are named "{TYPE}.{OPERATION}.{metric}".
+ */
+final class CalculatorMetrics implements DynamicMBean {
+    /**
+     * Name of MBean.
+     */
+    static final String OBJECT_NAME = "calculator:type=CalculatorMetrics";
+    /**
+     * Percentiles reported in snapshot.
+     */
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    /**
+     * Amount of operation types.
+     */
+    private static final int OPERATIONS = OperationType.values().length;
+    /**
+     * Amount of error types.
+     */
+    private static final int ERRORS = CalculationError.values().length;
+
+    /**
+     * Amount of commands, indexed by type and operation.
+     */
+    private final LongAdder[] counts;
+    /**
+     * Amount of errors, indexed by type, operation and error.
+     */
+    private final LongAdder[] errors;
+    /**
+     * Latencies in nanoseconds, indexed by type and operation.
+     */
+    private final LatencyHistogram[] latencies;
+
+    /**
+     * Creates empty metrics.
+     */
+    CalculatorMetrics() {
+        int size = CalculatorType.values().length * OPERATIONS;
+        counts = new LongAdder[size];
+        errors = new LongAdder[size * ERRORS];
+        latencies = new LatencyHistogram[size];
+        for (int i = 0; i < size; i++) {
+            counts[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records evaluated command.
+     *
+     * @param type      type of calculator
+     * @param operation operation of command
+     * @param error     error of command, null if there is no error
+     * @param nanos     time of evaluation
+     */
+    void record(CalculatorType type, OperationType operation, CalculationError error, long nanos) {
+        int index = type.ordinal() * OPERATIONS + operation.ordinal();
+        counts[index].increment();
+        if (error != null) {
+            errors[index * ERRORS + error.ordinal()].increment();
+        }
+        latencies[index].record(nanos);
+    }
+
+    /**
+     * Writes all non-empty metrics as a table.
+     *
+     * @return text of snapshot
+     */
+    String snapshot() {
+        StringBuilder text = new StringBuilder(String.format("%-12s %-15s %12s", "calculator", "operation", "count"));
+        for (CalculationError error : CalculationError.values()) {
+            text.append(' ').append(error);
+        }
+        text.append(String.format(" %10s", "mean ns"));
+        for (double percentile : PERCENTILES) {
+            String name = percentile == Math.rint(percentile) ? Long.toString((long) percentile)
+                    : Double.toString(percentile);
+            text.append(String.format(" %10s", "p" + name + " ns"));
+        }
+        text.append(String.format(" %12s%n", "max ns"));
+        for (CalculatorType type : CalculatorType.values()) {
+            for (OperationType operation : OperationType.values()) {
+                int index = type.ordinal() * OPERATIONS + operation.ordinal();
+                if (counts[index].sum() == 0) {
+                    continue;
+                }
+                LatencyHistogram histogram = latencies[index];
+                text.append(String.format("%-12s %-15s %12d", type, operation, counts[index].sum()));
+                for (CalculationError error : CalculationError.values()) {
+                    text.append(String.format(" %" + error.toString().length() + "d",
+                            errors[index * ERRORS + error.ordinal()].sum()));
+                }
+                text.append(String.format(" %10.1f", histogram.getMean()));
+                for (double percentile : PERCENTILES) {
+                    text.append(String.format(" %10d", histogram.getValueAtPercentile(percentile)));
+                }
+                text.append(String.format(" %12d%n", histogram.getMax()));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Registers metrics in platform MBean server.
+     *
+     * @throws JMException if MBean can not be registered
+     */
+    void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (attribute.equals("Snapshot")) {
+            return snapshot();
+        }
+        String[] parts = attribute.split("\\.");
+        if (parts.length == 3) {
+            for (CalculatorType type : CalculatorType.values()) {
+                for (OperationType operation : OperationType.values()) {
+                    if (parts[0].equals(type.toString()) && parts[1].equals(operation.toString())) {
+                        return getAttribute(type.ordinal() * OPERATIONS + operation.ordinal(), parts[2]);
+                    }
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private Object getAttribute(int index, String metric) throws AttributeNotFoundException {
+        switch (metric) {
+            case "Count":
+                return counts[index].sum();
+            case "Errors":
+                long sum = 0;
+                for (int i = 0; i < ERRORS; i++) {
+                    sum += errors[index * ERRORS + i].sum();
+                }
+                return sum;
+            case "MeanNanos":
+                return latencies[index].getMean();
+            case "P99Nanos":
+                return latencies[index].getValueAtPercentile(99);
+            case "MaxNanos":
+                return latencies[index].getMax();
+            default:
+                throw new AttributeNotFoundException(metric);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {  // unknown attributes are skipped, as JMX requires
+                continue;
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        attributes.add(new MBeanAttributeInfo("Snapshot", "java.lang.String", "Table of all metrics",
+                true, false, false));
+        String[][] metrics = {
+            {"Count", "java.lang.Long", "Amount of commands"},
+            {"Errors", "java.lang.Long", "Amount of commands with error"},
+            {"MeanNanos", "java.lang.Double", "Mean latency"},
+            {"P99Nanos", "java.lang.Long", "99th percentile of latency"},
+            {"MaxNanos", "java.lang.Long", "Max latency"},
+        };
+        for (CalculatorType type : CalculatorType.values()) {
+            for (OperationType operation : OperationType.values()) {
+                for (String[] metric : metrics) {
+                    attributes.add(new MBeanAttributeInfo(type + "." + operation + "." + metric[0], metric[1],
+                            metric[2], true, false, false));
+                }
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Metrics of calculator commands",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
+
+/**
+ * Calculator that measures evaluation time of another calculator and records it into metrics.
+ */
+final class MeteredCalculator extends Calculator {
+    /**
+     * Measured calculator.
+     */
+    private final Calculator delegate;
+    /**
+     * Type of measured calculator.
+     */
+    private final CalculatorType type;
+    /**
+     * Destination of measurements.
+     */
+    private final CalculatorMetrics metrics;
+
+    /**
+     * @param calculator     measured calculator
+     * @param calculatorType type of measured calculator
+     * @param metricsStorage destination of measurements
+     */
+    MeteredCalculator(Calculator calculator, CalculatorType calculatorType, CalculatorMetrics metricsStorage) {
+        this.delegate = calculator;
+        this.type = calculatorType;
+        this.metrics = metricsStorage;
+    }
+
+    /**
+     * Getter for delegate.
+     *
+     * @return measured calculator
+     */
+    Calculator getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Records command that was rejected before evaluation, e.g. because of missing operands.
+     *
+     * @param operation operation of command
+     * @param error     error of command
+     */
+    void recordRejected(OperationType operation, CalculationError error) {
+        metrics.record(type, operation, error, 0);
+    }
+
+    /**
+     * Records command whose result was found in cache, so that it was not evaluated.
+     *
+     * @param operation operation of command
+     * @param result    cached result of command
+     * @param nanos     time of lookup
+     */
+    void recordCached(OperationType operation, CalculationResult result, long nanos) {
+        metrics.record(type, operation, result.isError() ? result.getError() : null, nanos);
+    }
+
+    @Override
+    public CalculationResult evaluate(OperationType operation, CharSequence a, int aFrom, int aTo,
+                                      CharSequence b, int bFrom, int bTo, CalculationResult result) {
+        long start = System.nanoTime();
+        delegate.evaluate(operation, a, aFrom, aTo, b, bFrom, bTo, result);
+        metrics.record(type, operation, result.isError() ? result.getError() : null, System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public CalculationResult evaluate(OperationType operation, CalculationResult a, CalculationResult b,
+                                      CalculationResult result) {
+        long start = System.nanoTime();
+        delegate.evaluate(operation, a, b, result);
+        metrics.record(type, operation, result.isError() ? result.getError() : null, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Evaluates operation by delegate with measurement.
+     *
+     * @param operation operation to evaluate
+     * @param a         string, 1st argument
+     * @param b         string, 2nd argument
+     * @return result or error message
+     */
+    private String evaluate(OperationType operation, String a, String b) {
+        return evaluate(operation, a, 0, a.length(), b, 0, b.length(), new CalculationResult()).toString();
+    }
+
+    @Override
+    public String add(String a, String b) {
+        return evaluate(OperationType.ADDITION, a, b);
+    }
+
+    @Override
+    public String subtract(String a, String b) {
+        return evaluate(OperationType.SUBTRACTION, a, b);
+    }
+
+    @Override
+    public String multiply(String a, String b) {
+        return evaluate(OperationType.MULTIPLICATION, a, b);
+    }
+
+    @Override
+    public String divide(String a, String b) {
+        return evaluate(OperationType.DIVISION, a, b);
+    }
+}
+
+/**
+ * Calculator server for loopback TCP connections. Every connection is a session in line format:
+ * calculator type, then commands until client closes its output. Amount of commands is not sent,
+ * results are sent back in order of commands, so client can send many commands without waiting.
+ */
+final class CalculatorServer {
+    /**
+     * Max amount of connections waiting to be accepted.
+     */
+    static final int BACKLOG = 4096;
+    /**
+     * Size of input and output buffers of connection, small so that many connections fit into memory.
+     */
+    private static final int BUFFER_SIZE = 4096;
+    /**
+     * Stack size of platform threads of connections, used when virtual threads are not available.
+     */
+    private static final long THREAD_STACK_SIZE = 256 * 1024;
+
+    /**
+     * Implementations of calculator, indexed by CalculatorType ordinal.
+     */
+    private final Calculator[] calculators;
+    /**
+     * Cache of results shared by connections, null if results are not cached.
+     */
+    private final ResultCache cache;
+
+    /**
+     * @param calculatorsArray implementations of calculator, indexed by CalculatorType ordinal
+     * @param resultCache      cache of results shared by connections, null to evaluate every command
+     */
+    CalculatorServer(Calculator[] calculatorsArray, ResultCache resultCache) {
+        this.calculators = calculatorsArray;
+        this.cache = resultCache;
+    }
+
+    /**
+     * Accepts connections until server socket is closed.
+     *
+     * @param serverSocket bound server socket
+     * @throws IOException if server socket failed
+     */
+    void serve(ServerSocket serverSocket) throws IOException {
+        ExecutorService executor = newConnectionExecutor();
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> handle(socket));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Creates executor with a virtual thread per connection if JVM has them (Java 21+),
+     * otherwise with platform threads with small stacks.
+     *
+     * @return executor for connections
+     */
+    static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(null, task, "calculator-connection", THREAD_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Serves connection and closes it.
+     *
+     * @param socket socket of connection
+     */
+    private void handle(Socket socket) {
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);  // results are flushed in batches already
+            serveSession(new CommandReader(connection.getInputStream(), BUFFER_SIZE),
+                    new ResultWriter(connection.getOutputStream(), BUFFER_SIZE));
+        } catch (IOException e) {  // connection is broken by client, nobody is waiting for results
+            return;
+        }
+    }
+
+    /**
+     * Evaluates commands of one session until input is over.
+     * Results are flushed only when no more whole commands are buffered, so pipelined commands are answered
+     * in batches, and client that waits for results always gets them.
+     *
+     * @param reader input of session
+     * @param writer output of session
+     * @throws IOException if input or output failed
+     */
+    void serveSession(CommandReader reader, ResultWriter writer) throws IOException {
+        CommandLine line = new CommandLine();
+        try {
+            CalculatorType calculatorType = reader.readLine(line) ? CalculatorType.parse(line.toString())
+                    : CalculatorType.INCORRECT;
+            if (calculatorType == CalculatorType.INCORRECT) {
+                writer.writeLine("Wrong calculator type");
+                return;
+            }
+            CommandEvaluator evaluator = new CommandEvaluator(calculatorType, calculators[calculatorType.ordinal()],
+                    cache, null);
+            while (reader.readLine(line)) {
+                writer.writeLine(evaluator.evaluate(line));
+                if (!reader.hasBufferedLine()) {
+                    writer.flush();
+                }
+            }
+        } finally {
+            writer.flush();
+        }
+    }
+}
+
+/**
+ * Formats doubles exactly as Double.toString of Java 19+ does: shortest decimal that rounds to the same
+ * double, by Schubfach algorithm of R. Giulietti. Digits are written straight into byte array.
+ * Older Java versions print some doubles with extra digits, so there Double.toString is used as is,
+ * and output is always the same as Double.toString of running JVM.
+ */
+final class DoubleFormatter {
+    /**
+     * Max length of formatted double, e.g. "-2.2250738585072014E-308".
+     */
+    static final int MAX_LENGTH = 24;
+    /**
+     * Shows if Double.toString of running JVM gives shortest decimals, so this formatter may replace it.
+     * 1.0E23 is printed as "9.999999999999999E22" by Java 18 and older.
+     */
+    static final boolean ENABLED = Double.toString(1.0E23).equals("1.0E23");
+
+    /**
+     * Precision of double in bits.
+     */
+    private static final int P = 53;
+    /**
+     * Min binary exponent of double, as exponent of its integer significand.
+     */
+    private static final int Q_MIN = -1074;
+    /**
+     * Min significand of normal double.
+     */
+    private static final long C_MIN = 1L << (P - 1);
+    /**
+     * Subnormal significands below this bound need one more digit of precision.
+     */
+    private static final int C_TINY = 3;
+    /**
+     * Bounds of decimal exponent k of table of powers of ten.
+     */
+    private static final int K_MIN = -324;
+    /**
+     * @see #K_MIN
+     */
+    private static final int K_MAX = 292;
+    /**
+     * Max amount of significant digits.
+     */
+    private static final int H = 17;
+    /**
+     * Mask of lower 63 bits.
+     */
+    private static final long MASK_63 = (1L << 63) - 1;
+    /**
+     * Mask of lower 28 bits.
+     */
+    private static final int MASK_28 = (1 << 28) - 1;
+    /**
+     * Powers of ten that fit into long.
+     */
+    private static final long[] POWERS_OF_TEN = new long[H + 2];
+    /**
+     * Approximations g of 10^(-k): 2^125 &lt;= g 2^r &lt; 2^126 for some integer r, stored as pairs of
+     * higher and lower 63 bits of g, indexed by k - K_MIN.
+     */
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        BigInteger mask = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            BigInteger g;
+            if (k <= 0) {  // 10^(-k) is integer, it is shifted to 126 bits
+                BigInteger power = BigInteger.TEN.pow(-k);
+                int shift = power.bitLength() - 126;
+                g = shift >= 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+            } else {  // 10^(-k) is a fraction, it is scaled by 2^r and rounded down
+                BigInteger power = BigInteger.TEN.pow(k);
+                g = BigInteger.ONE.shiftLeft(power.bitLength() + 125).divide(power);
+            }
+            g = g.add(BigInteger.ONE);
+            G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+            G[2 * (k - K_MIN) + 1] = g.and(mask).longValue();
+        }
+    }
+
+    private DoubleFormatter() { }
+
+    /**
+     * Writes the same text as Double.toString(value) gives.
+     *
+     * @param value number to format
+     * @param bytes destination, at least MAX_LENGTH bytes from position
+     * @param position index of the first byte to write
+     * @return index after the last written byte
+     */
+    static int format(double value, byte[] bytes, int position) {
+        if (!ENABLED) {
+            String text = Double.toString(value);
+            for (int i = 0; i < text.length(); i++) {
+                bytes[position++] = (byte) text.charAt(i);
+            }
+            return position;
+        }
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & (C_MIN - 1);
+        int bq = (int) (bits >>> (P - 1)) & 0x7FF;
+        if (bq == 0x7FF) {
+            return append(t != 0 ? "NaN" : bits > 0 ? "Infinity" : "-Infinity", bytes, position);
+        }
+        if (bits < 0) {
+            bytes[position++] = '-';
+        }
+        if (bq != 0) {  // normal
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            if (0 < mq && mq < P) {  // integers are exact
+                long f = c >> mq;
+                if (f << mq == c) {
+                    return toChars(f, 0, bytes, position);
+                }
+            }
+            return toDecimal(-mq, c, 0, bytes, position);
+        }
+        if (t != 0) {  // subnormal
+            return t < C_TINY ? toDecimal(Q_MIN, 10 * t, -1, bytes, position)
+                    : toDecimal(Q_MIN, t, 0, bytes, position);
+        }
+        return append("0.0", bytes, position);
+    }
+
+    /**
+     * Finds shortest decimal in rounding interval of c 2^q and writes it.
+     *
+     * @param q        binary exponent
+     * @param c        significand
+     * @param dk       correction of decimal exponent for scaled significand of tiny subnormals
+     * @param bytes    destination
+     * @param position index of the first byte to write
+     * @return index after the last written byte
+     */
+    private static int toDecimal(int q, long c, int dk, byte[] bytes, int position) {
+        int out = (int) c & 1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {  // rounding interval is symmetric
+            cbl = cb - 2;
+            k = floorLog10Pow2(q);
+        } else {
+            cbl = cb - 1;
+            k = floorLog10ThreeQuartersPow2(q);
+        }
+        int h = q + floorLog2Pow10(-k) + 2;
+        long g1 = G[2 * (k - K_MIN)];
+        long g0 = G[2 * (k - K_MIN) + 1];
+
+        long vb = roundToOdd(g1, g0, cb << h);
+        long vbl = roundToOdd(g1, g0, cbl << h);
+        long vbr = roundToOdd(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {  // trying decimal with one digit less
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);  // 10 floor(s / 10)
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                return toChars(upin ? sp10 : tp10, k, bytes, position);
+            }
+        }
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {  // only one of neighbours is in rounding interval
+            return toChars(uin ? s : t, k + dk, bytes, position);
+        }
+        long cmp = vb - (s + t << 1);  // both are, the closest one is chosen
+        return toChars(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk, bytes, position);
+    }
+
+    /**
+     * Computes product of g = g1 2^63 + g0 and cp, scaled by 2^-127 and rounded to odd.
+     */
+    private static long roundToOdd(long g1, long g0, long cp) {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    private static int floorLog10Pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    private static int floorLog10ThreeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L - 274_743_187_321L >> 41);
+    }
+
+    private static int floorLog2Pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+    /**
+     * Writes f 10^e in plain format for 10^-3 &lt;= value &lt; 10^7, otherwise in scientific notation.
+     */
+    private static int toChars(long f, int e, byte[] bytes, int position) {
+        int length = floorLog10Pow2(Long.SIZE - Long.numberOfLeadingZeros(f));
+        if (f >= POWERS_OF_TEN[length]) {
+            length++;
+        }
+        // f gets exactly H digits, so that value is 0.f 10^e
+        f *= POWERS_OF_TEN[H - length];
+        e += length;
+
+        // digits are split into the highest one and two blocks of 8, which are extracted with int arithmetic
+        long hm = Math.multiplyHigh(f, 193_428_131_138_340_668L) >>> 20;  // f / 10^8
+        int l = (int) (f - 100_000_000L * hm);
+        int h = (int) (hm * 1_441_151_881L >>> 57);  // hm / 10^8
+        int m = (int) (hm - 100_000_000 * h);
+
+        if (0 < e && e <= 7) {  // plain format, integer part has e digits
+            bytes[position++] = (byte) ('0' + h);
+            int y = scaledDigits(m);
+            int i = 1;
+            for (; i < e; i++) {
+                int digits = 10 * y;
+                bytes[position++] = (byte) ('0' + (digits >>> 28));
+                y = digits & MASK_28;
+            }
+            bytes[position++] = '.';
+            for (; i <= 8; i++) {
+                int digits = 10 * y;
+                bytes[position++] = (byte) ('0' + (digits >>> 28));
+                y = digits & MASK_28;
+            }
+            return lowDigits(l, bytes, position);
+        }
+        if (-3 < e && e <= 0) {  // plain format with leading zeros
+            bytes[position++] = '0';
+            bytes[position++] = '.';
+            for (; e < 0; e++) {
+                bytes[position++] = '0';
+            }
+            bytes[position++] = (byte) ('0' + h);
+            position = append8Digits(m, bytes, position);
+            return lowDigits(l, bytes, position);
+        }
+        // scientific notation
+        bytes[position++] = (byte) ('0' + h);
+        bytes[position++] = '.';
+        position = append8Digits(m, bytes, position);
+        position = lowDigits(l, bytes, position);
+        return exponent(e - 1, bytes, position);
+    }
+
+    /**
+     * Writes the last 8 digits and removes trailing zeros, except the one right after the point.
+     */
+    private static int lowDigits(int l, byte[] bytes, int position) {
+        if (l != 0) {
+            position = append8Digits(l, bytes, position);
+        }
+        while (bytes[position - 1] == '0') {
+            position--;
+        }
+        return bytes[position - 1] == '.' ? position + 1 : position;
+    }
+
+    private static int append8Digits(int m, byte[] bytes, int position) {
+        int y = scaledDigits(m);
+        for (int i = 0; i < 8; i++) {
+            int digits = 10 * y;
+            bytes[position++] = (byte) ('0' + (digits >>> 28));
+            y = digits & MASK_28;
+        }
+        return position;
+    }
+
+    /**
+     * Scales 8 digits number to fixed point fraction with 28 bits, so that every next digit is taken
+     * by multiplication by 10 and shift instead of division.
+     *
+     * @param a number below 10^8
+     * @return floor((a + 1) 2^28 / 10^8) - 1
+     */
+    private static int scaledDigits(int a) {
+        return (int) (Math.multiplyHigh((long) (a + 1) << 28, 193_428_131_138_340_668L) >>> 20) - 1;
+    }
+
+    private static int exponent(int e, byte[] bytes, int position) {
+        bytes[position++] = 'E';
+        if (e < 0) {
+            bytes[position++] = '-';
+            e = -e;
+        }
+        if (e >= 100) {
+            int d = e * 1_311 >>> 17;  // e / 100
+            bytes[position++] = (byte) ('0' + d);
+            e -= 100 * d;
+        } else if (e < 10) {
+            bytes[position++] = (byte) ('0' + e);
+            return position;
+        }
+        int d = e * 103 >>> 10;  // e / 10
+        bytes[position++] = (byte) ('0' + d);
+        bytes[position++] = (byte) ('0' + e - 10 * d);
+        return position;
+    }
+
+    private static int append(String text, byte[] bytes, int position) {
+        for (int i = 0; i < text.length(); i++) {
+            bytes[position++] = (byte) text.charAt(i);
+        }
+        return position;
+    }
+}
+
+/**
+ * Evaluates commands whose operands may refer to results of earlier commands: "$k" is result of k-th command
+ * of session, "acc" is result of previous command. Commands are read in batches; every batch is split into
+ * levels, so that a command depends only on commands of lower levels, and commands of one level are
+ * evaluated in parallel. Chains of dependent commands stay ordered, independent chains do not wait for each
+ * other, and results are written in order of commands.
+ * Aggregate commands are reduced by AggregateReducer as soon as they are read, so their operands must be
+ * literals: a reference among them is a wrong argument. Their results may be referenced by later commands.
+ */
+final class RegisterSession {
+    /**
+     * Max amount of commands evaluated as one dependency graph.
+     */
+    static final int BATCH_SIZE = 1 << 14;
+    /**
+     * Operand that refers to result of previous command.
+     */
+    static final String ACCUMULATOR = "acc";
+    /**
+     * First char of operand that refers to result of command by its number.
+     */
+    static final char REGISTER_PREFIX = '$';
+    /**
+     * Levels with fewer commands are evaluated in current thread, as parallel tasks would cost more.
+     */
+    private static final int MIN_PARALLEL_LEVEL = 256;
+
+    /**
+     * Implementations of calculator, indexed by CalculatorType ordinal.
+     */
+    private final Calculator[] calculators;
+    /**
+     * Input of session.
+     */
+    private final CommandReader reader;
+    /**
+     * Output of session.
+     */
+    private final ResultWriter writer;
+    /**
+     * Pool for parallel evaluation, null if commands are evaluated in current thread.
+     */
+    private final ForkJoinPool pool;
+    /**
+     * Results of commands of previous batches, null for commands with errors.
+     * Results are kept as values, not as printed text, so that they are passed to calculator as they are.
+     */
+    private final List<CalculationResult> history = new ArrayList<>();
+    /**
+     * Storage for current line.
+     */
+    private final CommandLine line = new CommandLine();
+    /**
+     * Reducer of aggregate commands, created when type of calculator is read.
+     */
+    private AggregateReducer reducer;
+
+    /**
+     * @param calculatorsArray implementations of calculator, indexed by CalculatorType ordinal
+     * @param commandReader    input of session
+     * @param resultWriter     output of session
+     * @param forkJoinPool     pool for parallel evaluation, null to evaluate in current thread
+     */
+    RegisterSession(Calculator[] calculatorsArray, CommandReader commandReader, ResultWriter resultWriter,
+                    ForkJoinPool forkJoinPool) {
+        this.calculators = calculatorsArray;
+        this.reader = commandReader;
+        this.writer = resultWriter;
+        this.pool = forkJoinPool;
+    }
+
+    /**
+     * Command with operands that are either literals or references to other commands.
+     */
+    private static final class Command {
+        /**
+         * Operation of command.
+         */
+        private OperationType operation;
+        /**
+         * Literal operands of TEXT kind, unused if operand is a reference.
+         */
+        private final CalculationResult a = new CalculationResult();
+        /**
+         * @see #a
+         */
+        private final CalculationResult b = new CalculationResult();
+        /**
+         * Indices of referenced commands in session, -1 for literal operands.
+         */
+        private long referenceA = -1;
+        /**
+         * @see #referenceA
+         */
+        private long referenceB = -1;
+        /**
+         * Length of the longest chain of commands of the same batch this command depends on.
+         */
+        private int level;
+        /**
+         * Result of command, null if it has an error.
+         */
+        private CalculationResult result;
+        /**
+         * Error of command, null if there is no error.
+         */
+        private CalculationError error;
+    }
+
+    /**
+     * Evaluates all commands. Fatal error stops the session after its message is written.
+     *
+     * @throws IOException if input or output failed
+     */
+    void run() throws IOException {
+        try {
+            CalculatorType calculatorType = reader.readLine(line) ? CalculatorType.parse(line.toString())
+                    : CalculatorType.INCORRECT;
+            if (calculatorType == CalculatorType.INCORRECT) {
+                writer.writeLine("Wrong calculator type");
+                return;
+            }
+            Calculator calculator = calculators[calculatorType.ordinal()];
+            reducer = new AggregateReducer(calculatorType, calculator, pool);
+            long commandsNumber = reader.readLine(line) ? StreamSession.parseCommandsNumber(line) : -1;
+            if (commandsNumber < 1) {
+                writer.writeLine("Amount of commands is Not a Number");
+                return;
+            }
+
+            Command[] batch = new Command[BATCH_SIZE];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = new Command();
+            }
+            long read = 0;
+            while (read < commandsNumber) {
+                int size = 0;
+                while (size < batch.length && read + size < commandsNumber && reader.readLine(line)) {
+                    parse(batch[size], read + size);
+                    size++;
+                }
+                if (size == 0) {  // input is over
+                    break;
+                }
+                evaluate(calculator, batch, size, read);
+                for (int i = 0; i < size; i++) {
+                    Command command = batch[i];
+                    if (command.error != null) {
+                        writer.writeLine(command.error.getMessage());
+                    } else {  // long text is written by parts, as in stream mode
+                        writer.writeLine(command.result);
+                    }
+                    history.add(command.result);
+                }
+                read += size;
+            }
+        } finally {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Parses command in current line.
+     *
+     * @param command storage for command
+     * @param index   index of command in session
+     */
+    private void parse(Command command, long index) {
+        command.result = null;
+        command.error = null;
+        command.referenceA = -1;
+        command.referenceB = -1;
+        int tokenCount = line.getTokenCount();
+        AggregateType aggregate = AggregateType.parse(line, line.getTokenStart(0), line.getTokenEnd(0));
+        if (aggregate != null) {  // evaluated now, as it depends on nothing, and the line is reused
+            for (int token = 1; token < tokenCount; token++) {
+                if (isReference(line, line.getTokenStart(token), line.getTokenEnd(token))) {
+                    command.error = CalculationError.WRONG_ARGUMENT;
+                    return;
+                }
+            }
+            CalculationResult result = reducer.reduce(aggregate, line, new CalculationResult());
+            if (result.isError()) {
+                command.error = result.getError();
+            } else {
+                command.result = result;
+            }
+            return;
+        }
+        command.operation = OperationType.parse(line, line.getTokenStart(0), line.getTokenEnd(0));
+        if (command.operation == OperationType.INCORRECT) {
+            command.error = CalculationError.WRONG_OPERATION;
+        } else if (tokenCount < 3) {  // operands are missing
+            command.error = CalculationError.WRONG_ARGUMENT;
+        } else {
+            String a = line.getToken(1);
+            String b = line.getToken(2);
+            command.a.setText(a);
+            command.b.setText(b);
+            command.referenceA = parseReference(a, index);
+            command.referenceB = parseReference(b, index);
+            if (command.referenceA < -1 || command.referenceB < -1) {
+                command.error = CalculationError.WRONG_ARGUMENT;
+            }
+        }
+    }
+
+    /**
+     * @param text sequence with operand
+     * @param from index of the first char of operand
+     * @param to   index after the last char of operand
+     * @return true if operand refers to result of other command, whether that command exists or not
+     */
+    private static boolean isReference(CharSequence text, int from, int to) {
+        if (from < to && text.charAt(from) == REGISTER_PREFIX) {
+            return true;
+        }
+        if (to - from != ACCUMULATOR.length()) {
+            return false;
+        }
+        for (int i = 0; i < ACCUMULATOR.length(); i++) {
+            if (text.charAt(from + i) != ACCUMULATOR.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param operand operand of command
+     * @param index   index of command in session
+     * @return index of referenced command, -1 if operand is literal, -2 if it refers to missing command
+     */
+    private static long parseReference(String operand, long index) {
+        if (operand.equals(ACCUMULATOR)) {
+            return index > 0 ? index - 1 : -2;
+        }
+        if (operand.isEmpty() || operand.charAt(0) != REGISTER_PREFIX) {
+            return -1;
+        }
+        CalculationResult number = new CalculationResult();
+        if (operand.length() == 1 || !NumberLexer.parseLong(operand, 1, operand.length(), number)
+                || number.getLong() < 1 || number.getLong() > index) {  // only earlier commands are known
+            return -2;
+        }
+        return number.getLong() - 1;
+    }
+
+    /**
+     * Evaluates batch of commands, level by level.
+     *
+     * @param calculator calculator to use
+     * @param batch      commands
+     * @param size       amount of commands in batch
+     * @param start      index of the first command of batch in session
+     */
+    private void evaluate(Calculator calculator, Command[] batch, int size, long start) {
+        if (pool == null) {  // references always point back, so order of commands is a valid order
+            for (int i = 0; i < size; i++) {
+                evaluate(calculator, batch, start, batch[i]);
+            }
+            return;
+        }
+
+        // levels are found in one pass for the same reason, then commands are sorted by level
+        int levels = 0;
+        for (int i = 0; i < size; i++) {
+            Command command = batch[i];
+            command.level = Math.max(levelOf(batch, start, command.referenceA),
+                    levelOf(batch, start, command.referenceB));
+            levels = Math.max(levels, command.level + 1);
+        }
+        int[] levelStarts = new int[levels + 1];
+        for (int i = 0; i < size; i++) {
+            levelStarts[batch[i].level + 1]++;
+        }
+        for (int level = 0; level < levels; level++) {
+            levelStarts[level + 1] += levelStarts[level];
+        }
+        int[] order = new int[size];
+        int[] positions = Arrays.copyOf(levelStarts, levels);
+        for (int i = 0; i < size; i++) {
+            order[positions[batch[i].level]++] = i;
+        }
+
+        int threads = pool.getParallelism();
+        for (int level = 0; level < levels; level++) {
+            int from = levelStarts[level];
+            int to = levelStarts[level + 1];
+            if (to - from < MIN_PARALLEL_LEVEL || threads == 1) {
+                for (int i = from; i < to; i++) {
+                    evaluate(calculator, batch, start, batch[order[i]]);
+                }
+                continue;
+            }
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(threads);
+            for (int part = 0; part < threads; part++) {
+                int partFrom = from + (int) ((long) (to - from) * part / threads);
+                int partTo = from + (int) ((long) (to - from) * (part + 1) / threads);
+                tasks.add(ForkJoinTask.adapt(() -> {
+                    for (int i = partFrom; i < partTo; i++) {
+                        evaluate(calculator, batch, start, batch[order[i]]);
+                    }
+                }));
+            }
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        }
+    }
+
+    /**
+     * @return level of commands that depend on referenced command
+     */
+    private static int levelOf(Command[] batch, long start, long reference) {
+        return reference < start ? 0 : batch[(int) (reference - start)].level + 1;
+    }
+
+    /**
+     * Evaluates command whose referenced commands are already evaluated.
+     *
+     * @param calculator calculator to use
+     * @param batch      commands of current batch
+     * @param start      index of the first command of batch in session
+     * @param command    command to evaluate
+     */
+    private void evaluate(Calculator calculator, Command[] batch, long start, Command command) {
+        if (command.error != null || command.result != null) {  // rejected or aggregate, which is already reduced
+            return;
+        }
+        CalculationResult a = command.referenceA < 0 ? command.a : resultOf(batch, start, command.referenceA);
+        CalculationResult b = command.referenceB < 0 ? command.b : resultOf(batch, start, command.referenceB);
+        if (a == null || b == null) {  // referenced command has an error
+            command.error = CalculationError.WRONG_ARGUMENT;
+            return;
+        }
+        // result is a new object, as it may be referenced by later commands
+        CalculationResult result = calculator.evaluate(command.operation, a, b, new CalculationResult());
+        if (result.isError()) {
+            command.error = result.getError();
+        } else {
+            command.result = result;
+        }
+    }
+
+    private CalculationResult resultOf(Command[] batch, long start, long reference) {
+        return reference < start ? history.get((int) reference) : batch[(int) (reference - start)].result;
+    }
+}
+
+/**
+ * Command for CalculatorProcessor: type of calculator, operation and its operands.
+ */
+final class CalculatorCommand {
+    /**
+     * Type of calculator.
+     */
+    private final CalculatorType type;
+    /**
+     * Operation to evaluate.
+     */
+    private final OperationType operation;
+    /**
+     * 1st operand.
+     */
+    private final String a;
+    /**
+     * 2nd operand.
+     */
+    private final String b;
+
+    /**
+     * @param calculatorType type of calculator
+     * @param operationType  operation to evaluate
+     * @param first          1st operand
+     * @param second         2nd operand
+     */
+    CalculatorCommand(CalculatorType calculatorType, OperationType operationType, String first, String second) {
+        this.type = calculatorType;
+        this.operation = operationType;
+        this.a = first;
+        this.b = second;
+    }
+
+    /**
+     * Getter for type.
+     *
+     * @return type of calculator
+     */
+    CalculatorType getType() {
+        return type;
+    }
+
+    /**
+     * Getter for operation.
+     *
+     * @return operation to evaluate
+     */
+    OperationType getOperation() {
+        return operation;
+    }
+
+    /**
+     * Getter for a.
+     *
+     * @return 1st operand
+     */
+    String getA() {
+        return a;
+    }
+
+    /**
+     * Getter for b.
+     *
+     * @return 2nd operand
+     */
+    String getB() {
+        return b;
+    }
+}
+
+/**
+ * Flow stage that evaluates commands and publishes their results, or error messages, in order.
+ * Commands are requested from upstream by batches, and the next batch is requested only after results of
+ * the previous one are accepted by buffers of subscribers. Publishing blocks while buffer of a subscriber
+ * is full, so slow subscriber throttles upstream, and memory use is bounded by batch size and buffer capacity.
+ */
+final class CalculatorProcessor extends SubmissionPublisher<String>
+        implements Flow.Processor<CalculatorCommand, String> {
+    /**
+     * Implementations of calculator, indexed by CalculatorType ordinal.
+     */
+    private final Calculator[] calculators;
+    /**
+     * Amount of commands requested from upstream at once.
+     */
+    private final int batchSize;
+    /**
+     * Storage for result of current command, onNext() is never called concurrently.
+     */
+    private final CalculationResult result = new CalculationResult();
+    /**
+     * Subscription to upstream.
+     */
+    private Flow.Subscription subscription;
+    /**
+     * Amount of commands left from the last requested batch.
+     */
+    private int requested = 0;
+
+    /**
+     * @param calculatorsArray  implementations of calculator, indexed by CalculatorType ordinal
+     * @param executor          executor that delivers results to subscribers
+     * @param maxBufferCapacity max amount of results buffered for every subscriber
+     * @param batch             amount of commands requested from upstream at once
+     */
+    CalculatorProcessor(Calculator[] calculatorsArray, Executor executor, int maxBufferCapacity, int batch) {
+        super(executor, maxBufferCapacity);
+        if (batch <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batch);
+        }
+        this.calculators = calculatorsArray;
+        this.batchSize = batch;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription upstream) {
+        if (subscription != null) {  // processor may be subscribed only once
+            upstream.cancel();
+            return;
+        }
+        subscription = upstream;
+        requested = batchSize;
+        upstream.request(batchSize);
+    }
+
+    @Override
+    public void onNext(CalculatorCommand command) {
+        submit(evaluate(command));  // blocks while any subscriber has no room
+        if (--requested == 0) {
+            requested = batchSize;
+            subscription.request(batchSize);
+        }
+    }
+
+    /**
+     * @param command command to evaluate
+     * @return result or error message
+     */
+    private String evaluate(CalculatorCommand command) {
+        if (command.getType() == CalculatorType.INCORRECT) {
+            return "Wrong calculator type";
+        }
+        String a = command.getA();
+        String b = command.getB();
+        return calculators[command.getType().ordinal()].evaluate(command.getOperation(), a, 0, a.length(),
+                b, 0, b.length(), result).toString();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        closeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        close();
+    }
+}
+
+/**
+ * Evaluates many input files in one JVM, so that startup and JIT warm-up are paid once per batch instead of
+ * once per file. Every file is a separate session in line format: calculator type, amount of commands, commands.
+ * Results of file are written next to it, into the file with OUTPUT_SUFFIX. Files are evaluated concurrently
+ * by a fixed amount of workers, and failure of one file does not stop the others.
+ */
+final class BatchRunner {
+    /**
+     * Suffix that is added to name of input to get name of its output.
+     */
+    static final String OUTPUT_SUFFIX = ".out";
+
+    /**
+     * Implementations of calculator, indexed by CalculatorType ordinal, shared by all files.
+     */
+    private final Calculator[] calculators;
+    /**
+     * Cache of results shared by all files, null if results are not cached.
+     */
+    private final ResultCache cache;
+    /**
+     * Shows if files are evaluated as register programs.
+     */
+    private final boolean registers;
+    /**
+     * Amount of files that are evaluated at the same time.
+     */
+    private final int workers;
+
+    /**
+     * @param calculatorsArray implementations of calculator, indexed by CalculatorType ordinal
+     * @param resultCache      cache of results, null to evaluate every command
+     * @param useRegisters     true if files are register programs
+     * @param workerCount      amount of files that are evaluated at the same time
+     */
+    BatchRunner(Calculator[] calculatorsArray, ResultCache resultCache, boolean useRegisters, int workerCount) {
+        this.calculators = calculatorsArray;
+        this.cache = resultCache;
+        this.registers = useRegisters;
+        this.workers = workerCount;
+    }
+
+    /**
+     * Input of batch: either path of file, or line of manifest that is not a path and fails as a job.
+     */
+    static final class Input {
+        /**
+         * Name of input in log of failures.
+         */
+        private final String name;
+        /**
+         * Path of input file, null if line of manifest is not a path.
+         */
+        private final Path path;
+        /**
+         * Reason why line of manifest is not a path, null for input file.
+         */
+        private final InvalidPathException error;
+
+        /**
+         * @param inputName  name of input in log of failures
+         * @param inputPath  path of input file, null if line of manifest is not a path
+         * @param inputError reason why line of manifest is not a path, null for input file
+         */
+        private Input(String inputName, Path inputPath, InvalidPathException inputError) {
+            this.name = inputName;
+            this.path = inputPath;
+            this.error = inputError;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Lists input files of batch. Every file is listed once, so that no two jobs write the same output.
+     *
+     * @param path directory, whose regular files except outputs are inputs; or manifest, whose non-blank lines
+     *             are paths of inputs relative to directory of manifest
+     * @return inputs, sorted by name for directory, in order of lines for manifest; lines that repeat a path
+     *         already listed are skipped
+     * @throws IOException if directory or manifest can not be read
+     */
+    static List<Input> listInputs(Path path) throws IOException {
+        List<Input> inputs = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path file : stream) {
+                    if (Files.isRegularFile(file) && !file.getFileName().toString().endsWith(OUTPUT_SUFFIX)) {
+                        files.add(file);
+                    }
+                }
+            }
+            files.sort(null);
+            for (Path file : files) {
+                inputs.add(new Input(file.toString(), file, null));
+            }
+            return inputs;
+        }
+        Path base = path.toAbsolutePath().getParent();
+        Set<Path> listed = new HashSet<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String entry = line.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            Path input;
+            try {
+                input = base.resolve(entry).normalize();
+            } catch (InvalidPathException e) {  // one bad line must not stop the rest of batch
+                inputs.add(new Input(entry, null, e));
+                continue;
+            }
+            if (listed.add(input)) {
+                inputs.add(new Input(input.toString(), input, null));
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * @param input path of input file
+     * @return path of its output file
+     */
+    static Path outputOf(Path input) {
+        return input.resolveSibling(input.getFileName() + OUTPUT_SUFFIX);
+    }
+
+    /**
+     * Evaluates all files. Failures are reported in order of files after all of them are evaluated.
+     *
+     * @param inputs inputs of batch
+     * @param log    destination of failures
+     * @return amount of failed inputs
+     * @throws InterruptedIOException if thread is interrupted while waiting for files
+     */
+    int run(List<Input> inputs, PrintStream log) throws InterruptedIOException {
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> jobs = new ArrayList<>(inputs.size());
+            for (Input input : inputs) {
+                jobs.add(executor.submit(() -> {
+                    if (input.error != null) {
+                        throw input.error;
+                    }
+                    evaluate(input.path);
+                    return null;
+                }));
+            }
+            int failed = 0;
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    jobs.get(i).get();
+                } catch (ExecutionException e) {  // any throwable of the job, even an Error, stays in its future
+                    log.println(inputs.get(i) + ": " + e.getCause());
+                    failed++;
+                }
+            }
+            return failed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch is interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Evaluates one file. Fatal errors of session, e.g. wrong calculator type, are written into output
+     * as in console mode, but they stop this session only.
+     *
+     * @param input path of input file
+     * @throws IOException if input or output failed
+     */
+    private void evaluate(Path input) throws IOException {
+        try (InputStream in = Files.newInputStream(input);
+             OutputStream out = Files.newOutputStream(outputOf(input))) {
+            CommandReader reader = new CommandReader(in, CommandReader.DEFAULT_CAPACITY);
+            ResultWriter writer = new ResultWriter(out, ResultWriter.DEFAULT_CAPACITY);
+            if (registers) {
+                new RegisterSession(calculators, reader, writer, null).run();
+            } else {
+                new StreamSession(calculators, reader, writer, null, cache).run();
+            }
+        }
     }
 }
@@ -4,10 +4,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 public final class Main {
@@ -141,13 +143,18 @@ public final class Main {
                 throw new InvalidNumberOfPiecesException();
             }
 
-            for (PiecePosition position: allPieces) {
+            ChessPiece[] pieces = new ChessPiece[allPieces.size()];
+            for (int i = 0; i < pieces.length; i++) {
+                pieces[i] = chessBoard.getPiece(allPieces.get(i));
+            }
+            // counts are calculated in parallel, but stored by index, so output keeps order of input
+            int[] counts = chessBoard.getPiecesPossibleCounts(pieces);
+            StringBuilder output = new StringBuilder();
+            for (int i = 0; i < pieces.length; i++) {
                 // output for every chess piece
-                chessPiece = chessBoard.getPiece(position);
-                String output = chessBoard.getPiecePossibleMoveCount(chessPiece)
-                        + " " + chessBoard.getPiecePossibleCapturesCount(chessPiece) + "\n";
-                fout.write(output.getBytes());
+                output.append(counts[2 * i]).append(' ').append(counts[2 * i + 1]).append('\n');
             }
+            fout.write(output.toString().getBytes());
 
         } catch (InvalidBoardSizeException ex) {
             fout.write((ex.getMessage() + "\n").getBytes());
@@ -214,7 +221,18 @@ class PiecePosition {
      * @return boolean validity
      */
     public boolean isValid(int boardSize) {
-        return this.x >= 1 && this.y >= 1 && this.x <= boardSize && this.y <= boardSize;
+        return isValid(this.x, this.y, boardSize);
+    }
+
+    /**
+     * checks if provided coordinates are possible on current board.
+     * @param onX int, X-coordinate
+     * @param onY int, Y-coordinate
+     * @param boardSize int, size of board
+     * @return boolean validity
+     */
+    public static boolean isValid(int onX, int onY, int boardSize) {
+        return onX >= 1 && onY >= 1 && onX <= boardSize && onY <= boardSize;
     }
 
     /**
@@ -289,6 +307,14 @@ abstract class ChessPiece {
      * determined after first call of any method
      */
     protected List<PiecePosition> possiblePositions = null;
+    /**
+     * number of possible moves on the board, -1 if it is not calculated after the last change nearby.
+     */
+    protected int cachedMovesCount = -1;
+    /**
+     * number of possible captures on the board, -1 if it is not calculated after the last change nearby.
+     */
+    protected int cachedCapturesCount = -1;
 
     /**
      * creates a chess piece with specified position and color.
@@ -307,6 +333,22 @@ abstract class ChessPiece {
     public PiecePosition getPosition() {
         return this.position;
     }
+    /**
+     * used by Board to move chess piece, drops everything calculated for previous position.
+     * @param piecePosition new position on the board
+     */
+    void setPosition(PiecePosition piecePosition) {
+        this.position = piecePosition;
+        this.possiblePositions = null;
+        invalidateCounts();
+    }
+    /**
+     * used by Board to drop cached counts after the board is changed nearby.
+     */
+    void invalidateCounts() {
+        this.cachedMovesCount = -1;
+        this.cachedCapturesCount = -1;
+    }
     /**
      * getter for color of chess piece.
      * @return PieceColor
@@ -323,11 +365,11 @@ abstract class ChessPiece {
 
     /**
      * used to calculate number of possible moves.
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible moves for chess piece
      */
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+    public int getMovesCount(PieceStore positions, int boardSize) {
         if (this.possiblePositions == null) {  // if possible positions are not calculated yet
             calculatePossiblePositions(boardSize);
         }
@@ -335,7 +377,8 @@ abstract class ChessPiece {
         int result = 0;
 
         for (PiecePosition piecePosition: this.possiblePositions) {  // for every possible new position
-            ChessPiece piece = positions.get(piecePosition.toString());  // piece on considered position, null if empty
+            // piece on considered position, null if empty
+            ChessPiece piece = positions.get(piecePosition.getX(), piecePosition.getY());
             if (piece == null || piece.getColor() != this.color) {
                 // if position is empty or contains piece of another color and, therefore, can be freed to move there
                 result++;
@@ -346,11 +389,11 @@ abstract class ChessPiece {
     }
     /**
      * used to calculate number of possible captures.
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible captures for chess piece
      */
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+    public int getCapturesCount(PieceStore positions, int boardSize) {
         if (this.possiblePositions == null) {  // if possible positions are not calculated yet
             calculatePossiblePositions(boardSize);
         }
@@ -358,7 +401,8 @@ abstract class ChessPiece {
         int result = 0;
 
         for (PiecePosition piecePosition: possiblePositions) {  // for every possible new position
-            ChessPiece piece = positions.get(piecePosition.toString());  // piece on considered position, null if empty
+            // piece on considered position, null if empty
+            ChessPiece piece = positions.get(piecePosition.getX(), piecePosition.getY());
             if (piece != null && piece.getColor() != this.color) {
                 // if position is not empty and contains piece of another color to capture
                 result++;
@@ -372,60 +416,38 @@ abstract class ChessPiece {
 
 /**
  * used in BishopMovement and RookMovement since they are built on the same principle.
- * directions are set by offsetMultipliers
+ * directions are set by offsetMultipliers, the nearest piece in every direction is found by index of the board,
+ * so squares of the ray are not visited one by one
  */
 interface ContinuousMovementsWithOffset {
     /**
      * used to calculate number of possible moves by continuously moving in provided directions.
      * @param position PiecePosition, position of considered chess piece
      * @param color PieceColor, color of considered chess piece
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @param offsetMultiplierX int[], array of multipliers for X-coordinate (1st, 2nd, 3rd, 4th direction)
      * @param offsetMultiplierY int[], same as offsetMultiplierX but for Y-coordinates
      * @return int, number of possible moves
      */
     default int getContinuousMovesCount(PiecePosition position, PieceColor color,
-                                        Map<String, ChessPiece> positions, int boardSize,
+                                        PieceStore positions, int boardSize,
                                         int[] offsetMultiplierX, int[] offsetMultiplierY) {
         int result = 0;  // return value
         // start position
         int x = position.getX();
         int y = position.getY();
 
-        // flags represent availability of movement in corresponding direction
-        boolean[] directionFlags = {true, true, true, true};
-
-        int offset = 0;  // how many moves from start
-
-        PiecePosition move;  // for considered move
-        ChessPiece piece;  // for piece placed on the considered move
-
-        int directionsAvailableCnt = 4;
-        while (directionsAvailableCnt != 0) {  // while move is possible in at least 1 direction
-            offset++;
-            for (int i = 0; i < directionFlags.length; i++) {  // for every direction
-                if (directionFlags[i]) {  // if direction is still available
-                    int newX = x + (offsetMultiplierX[i] * offset);
-                    int newY = y + (offsetMultiplierY[i] * offset);
-
-                    move = new PiecePosition(newX, newY);
-                    piece = positions.get(move.toString());
-
-                    if (move.isValid(boardSize) && piece == null) {
-                        // way is clear
-                        result++;
-                    } else if (move.isValid(boardSize) && piece != null && piece.color != color) {
-                        // piece in the way can be attacked
-                        directionFlags[i] = false;  // can not move further in this direction
-                        directionsAvailableCnt--;
-                        result++;  // but this position is possible for move
-                    } else {
-                        // either move is out of borders or piece of the same color is in the way
-                        directionFlags[i] = false;  // can not move further in this direction & this move is impossible
-                        directionsAvailableCnt--;
-                    }
-                }
+        for (int i = 0; i < offsetMultiplierX.length; i++) {  // for every direction
+            int distance = positions.distanceToBlocker(x, y, offsetMultiplierX[i], offsetMultiplierY[i]);
+            if (distance == 0) {
+                // way is clear until border
+                result += getDistanceToBorder(x, y, boardSize, offsetMultiplierX[i], offsetMultiplierY[i]);
+            } else {
+                ChessPiece piece = positions.get(x + offsetMultiplierX[i] * distance,
+                        y + offsetMultiplierY[i] * distance);
+                // squares before piece are free, and piece of another color can be attacked
+                result += piece.color != color ? distance : distance - 1;
             }
         }
 
@@ -436,14 +458,14 @@ interface ContinuousMovementsWithOffset {
      * used to calculate number of possible captures by continuously moving in provided directions.
      * @param position PiecePosition, position of considered chess piece
      * @param color PieceColor, color of considered chess piece
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @param offsetMultiplierX int[], array of multipliers for X-coordinate (1st, 2nd, 3rd, 4th direction)
      * @param offsetMultiplierY int[], same as offsetMultiplierX but for Y-coordinates
      * @return int, number of possible captures
      */
     default int getContinuousCapturesCount(PiecePosition position, PieceColor color,
-                                           Map<String, ChessPiece> positions, int boardSize,
+                                           PieceStore positions, int boardSize,
                                            int[] offsetMultiplierX, int[] offsetMultiplierY) {
         // almost same as getContinuousMovesCount
         int result = 0;  // return value
@@ -451,38 +473,31 @@ interface ContinuousMovementsWithOffset {
         int x = position.getX();
         int y = position.getY();
 
-        // flags represent availability of movement in corresponding direction
-        boolean[] directionFlags = {true, true, true, true};
-        int offset = 0;  // how many moves from start
-
-        PiecePosition move;  // for considered move
-        ChessPiece piece;  // for piece placed on the considered move
-
-        int directionsAvailableCnt = 4;
-        while (directionsAvailableCnt != 0) {  // while move is possible in at least 1 direction
-            offset++;
-            for (int i = 0; i < directionFlags.length; i++) {  // for every direction
-                if (directionFlags[i]) {  // if direction is still available
-                    int newX = x + (offsetMultiplierX[i] * offset);
-                    int newY = y + (offsetMultiplierY[i] * offset);
-
-                    move = new PiecePosition(newX, newY);
-                    piece = positions.get(move.toString());
-
-                    if (piece != null || !move.isValid(boardSize)) {
-                        directionFlags[i] = false;  // can not move further in this direction
-                        directionsAvailableCnt--;
-
-                        if (piece != null && piece.color != color) {  // piece can be captured
-                            result++;
-                        }
-                    }
-                }
+        for (int i = 0; i < offsetMultiplierX.length; i++) {  // for every direction
+            int distance = positions.distanceToBlocker(x, y, offsetMultiplierX[i], offsetMultiplierY[i]);
+            if (distance != 0 && positions.get(x + offsetMultiplierX[i] * distance,
+                    y + offsetMultiplierY[i] * distance).color != color) {  // the nearest piece can be captured
+                result++;
             }
         }
 
         return result;
     }
+
+    /**
+     * used to calculate number of squares between position and border in provided direction.
+     * @param x int, X-coordinate of start
+     * @param y int, Y-coordinate of start
+     * @param boardSize int, size of board
+     * @param dx int, multiplier for X-coordinate
+     * @param dy int, multiplier for Y-coordinate
+     * @return int, number of squares
+     */
+    static int getDistanceToBorder(int x, int y, int boardSize, int dx, int dy) {
+        int distanceX = dx > 0 ? boardSize - x : dx < 0 ? x - 1 : boardSize;
+        int distanceY = dy > 0 ? boardSize - y : dy < 0 ? y - 1 : boardSize;
+        return Math.min(distanceX, distanceY);
+    }
 }
 
 
@@ -494,12 +509,12 @@ interface BishopMovement extends ContinuousMovementsWithOffset {
      * used to calculate number of possible diagonal moves.
      * @param position PiecePosition, position of considered chess piece
      * @param color PieceColor, color of considered chess piece
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible diagonal moves
      */
     default int getDiagonalMovesCount(PiecePosition position, PieceColor color,
-                                      Map<String, ChessPiece> positions, int boardSize) {
+                                      PieceStore positions, int boardSize) {
         // multipliers for offset in X & Y with respect to direction: up left, up right, down left, down right
         int[] offsetMultiplierX = {-1, 1, -1, 1};
         int[] offsetMultiplierY = {1, 1, -1, -1};
@@ -511,12 +526,12 @@ interface BishopMovement extends ContinuousMovementsWithOffset {
      * used to calculate number of possible diagonal captures.
      * @param position PiecePosition, position of considered chess piece
      * @param color PieceColor, color of considered chess piece
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible diagonal captures
      */
     default  int getDiagonalCapturesCount(PiecePosition position, PieceColor color,
-                                          Map<String, ChessPiece> positions, int boardSize) {
+                                          PieceStore positions, int boardSize) {
         // multipliers for offset in X & Y with respect to direction: up left, up right, down left, down right
         int[] offsetMultiplierX = {-1, 1, -1, 1};
         int[] offsetMultiplierY = {1, 1, -1, -1};
@@ -534,12 +549,12 @@ interface RookMovement extends ContinuousMovementsWithOffset {
      * used to calculate number of possible orthogonal moves.
      * @param position PiecePosition, position of considered chess piece
      * @param color PieceColor, color of considered chess piece
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible orthogonal moves
      */
     default int getOrthogonalMovesCount(PiecePosition position, PieceColor color,
-                                        Map<String, ChessPiece> positions, int boardSize) {
+                                        PieceStore positions, int boardSize) {
         // multipliers for offset in X & Y with respect to direction: left, right, up, down
         int[] offsetMultiplierX = {-1, 1, 0, 0};
         int[] offsetMultiplierY = {0, 0, 1, -1};
@@ -551,12 +566,12 @@ interface RookMovement extends ContinuousMovementsWithOffset {
      * used to calculate number of possible orthogonal captures.
      * @param position PiecePosition, position of considered chess piece
      * @param color PieceColor, color of considered chess piece
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible orthogonal captures
      */
     default int getOrthogonalCapturesCount(PiecePosition position, PieceColor color,
-                                           Map<String, ChessPiece> positions, int boardSize) {
+                                           PieceStore positions, int boardSize) {
         // multipliers for offset in X & Y with respect to direction: left, right, up, down
         int[] offsetMultiplierX = {-1, 1, 0, 0};
         int[] offsetMultiplierY = {0, 0, 1, -1};
@@ -667,12 +682,12 @@ class Pawn extends ChessPiece {
 
     /**
      * used to calculate number of possible moves for Pawn.
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return number of possible moves
      */
     @Override
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+    public int getMovesCount(PieceStore positions, int boardSize) {
         int result;  // return value
 
         int direction;  // +1 means forward, -1 - backwards
@@ -682,10 +697,12 @@ class Pawn extends ChessPiece {
             direction = -1;
         }
 
-        PiecePosition moveForward = new PiecePosition(this.position.getX(), this.position.getY() + direction);
-        ChessPiece pieceInFront = positions.get(moveForward.toString());
+        int forwardX = this.position.getX();
+        int forwardY = this.position.getY() + direction;
+        ChessPiece pieceInFront = positions.get(forwardX, forwardY);
 
-        if (moveForward.isValid(boardSize) && pieceInFront == null) {  // if cell in forward direction is empty
+        if (PiecePosition.isValid(forwardX, forwardY, boardSize) && pieceInFront == null) {
+            // if cell in forward direction is empty
             result = 1;
         } else {
             result = 0;
@@ -696,12 +713,12 @@ class Pawn extends ChessPiece {
 
     /**
      * used to calculate number of possible captures for Pawn.
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible captures
      */
     @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+    public int getCapturesCount(PieceStore positions, int boardSize) {
         int result = 0;  // return value
 
         int direction;  // +1 means forward, -1 - backwards
@@ -711,18 +728,15 @@ class Pawn extends ChessPiece {
             direction = -1;
         }
 
-        // positions that can be attacked by Pawn
-        PiecePosition move1 = new PiecePosition(this.position.getX() - 1, this.position.getY() + direction);
-        PiecePosition move2 = new PiecePosition(this.position.getX() + 1, this.position.getY() + direction);
-        // chess pieces on attacked positions
-        ChessPiece piece1 = positions.get(move1.toString());
-        ChessPiece piece2 = positions.get(move2.toString());
+        // chess pieces on positions that can be attacked by Pawn, null if position is empty or out of board
+        ChessPiece piece1 = positions.get(this.position.getX() - 1, this.position.getY() + direction);
+        ChessPiece piece2 = positions.get(this.position.getX() + 1, this.position.getY() + direction);
 
-        if (move1.isValid(boardSize) && piece1 != null && this.color != piece1.getColor()) {
-            // if cell is valid and there is a piece of another color
+        if (piece1 != null && this.color != piece1.getColor()) {
+            // if there is a piece of another color
             result++;
         }
-        if (move2.isValid(boardSize) && piece2 != null && this.color != piece2.getColor()) {
+        if (piece2 != null && this.color != piece2.getColor()) {
             result++;
         }
 
@@ -751,23 +765,23 @@ class Bishop extends ChessPiece implements BishopMovement {
 
     /**
      * used to calculate number of possible moves for Bishop.
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible moves
      */
     @Override
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+    public int getMovesCount(PieceStore positions, int boardSize) {
         return getDiagonalMovesCount(this.position, this.color, positions, boardSize);
     }
 
     /**
      * used to calculate number of possible captures for Bishop.
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible captures
      */
     @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+    public int getCapturesCount(PieceStore positions, int boardSize) {
         return getDiagonalCapturesCount(this.position, this.color, positions, boardSize);
     }
 }
@@ -793,23 +807,23 @@ class Rook extends ChessPiece implements RookMovement {
 
     /**
      * used to calculate number of possible moves for Rook.
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible moves
      */
     @Override
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+    public int getMovesCount(PieceStore positions, int boardSize) {
         return getOrthogonalMovesCount(this.position, this.color, positions, boardSize);
     }
 
     /**
      * used to calculate number of possible captures for Rook.
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible captures
      */
     @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+    public int getCapturesCount(PieceStore positions, int boardSize) {
         return getOrthogonalCapturesCount(this.position, this.color, positions, boardSize);
     }
 }
@@ -835,24 +849,24 @@ class Queen extends ChessPiece implements BishopMovement, RookMovement {
 
     /**
      * used to calculate number of possible moves for Queen.
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible moves
      */
     @Override
-    public int getMovesCount(Map<String, ChessPiece> positions, int boardSize) {
+    public int getMovesCount(PieceStore positions, int boardSize) {
         return getDiagonalMovesCount(this.position, this.color, positions, boardSize)
                 + getOrthogonalMovesCount(this.position, this.color, positions, boardSize);
     }
 
     /**
      * used to calculate number of possible captures for Queen.
-     * @param positions Map<String, ChessPiece>, positions of pieces on board
+     * @param positions PieceStore, positions of pieces on board
      * @param boardSize int, size of board
      * @return int, number of possible captures
      */
     @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
+    public int getCapturesCount(PieceStore positions, int boardSize) {
         return getDiagonalCapturesCount(this.position, this.color, positions, boardSize)
                 + getOrthogonalCapturesCount(this.position, this.color, positions, boardSize);
     }
@@ -861,14 +875,24 @@ class Queen extends ChessPiece implements BishopMovement, RookMovement {
 
 class Board {
     /**
-     * map to access chess pieces by position string.
+     * store to access chess pieces by position.
+     */
+    private final PieceStore positionsToPieces;
+    /**
+     * bitboard to count moves by masks: SmallBitboard up to its MAX_SIZE, LargeBitboard for bigger boards.
      */
-    private Map<String, ChessPiece> positionsToPieces = new HashMap<>();
+    private final Bitboard bitboard;
     /**
      * size of the board.
      */
     private final int size;
 
+    /**
+     * shows if counts were requested, so changes of the board should invalidate cached counts.
+     * until then pieces are added without looking for affected pieces
+     */
+    private boolean hasCachedCounts = false;
+
     /**
      * shows if white king is already on board.
      */
@@ -886,6 +910,22 @@ class Board {
      * upper bound for size of the board.
      */
     private static final int MAXIMAL_SIZE = 1000;
+    /**
+     * multipliers for X-coordinate of 4 orthogonal directions, then of 4 diagonal directions.
+     */
+    private static final int[] DIRECTION_X = {1, -1, 0, 0, 1, 1, -1, -1};
+    /**
+     * same as DIRECTION_X but for Y-coordinates.
+     */
+    private static final int[] DIRECTION_Y = {0, 0, 1, -1, 1, -1, 1, -1};
+    /**
+     * offsets of Knight moves in X-coordinate, also used by SmallBitboard.
+     */
+    static final int[] KNIGHT_X = {2, 2, -2, -2, 1, 1, -1, -1};
+    /**
+     * offsets of Knight moves in Y-coordinate.
+     */
+    static final int[] KNIGHT_Y = {1, -1, 1, -1, 2, -2, 2, -2};
 
     /**
      * creates a Board with specified size.
@@ -897,6 +937,9 @@ class Board {
             throw new InvalidBoardSizeException();
         }
         this.size = boardSize;
+        this.positionsToPieces = new PieceStore(boardSize);
+        this.bitboard = boardSize <= SmallBitboard.MAX_SIZE ? new SmallBitboard(boardSize)
+                : new LargeBitboard(boardSize, this.positionsToPieces);
     }
 
     /**
@@ -905,7 +948,11 @@ class Board {
      * @return number of possible moves for chess piece
      */
     public int getPiecePossibleMoveCount(ChessPiece piece) {
-        return piece.getMovesCount(this.positionsToPieces, this.size);
+        if (piece.cachedMovesCount < 0) {  // if board was changed nearby
+            this.hasCachedCounts = true;
+            piece.cachedMovesCount = this.bitboard.getMovesCount(piece);
+        }
+        return piece.cachedMovesCount;
     }
 
     /**
@@ -914,7 +961,28 @@ class Board {
      * @return number of possible captures for chess piece
      */
     public int getPiecePossibleCapturesCount(ChessPiece piece) {
-        return piece.getCapturesCount(this.positionsToPieces, this.size);
+        if (piece.cachedCapturesCount < 0) {
+            this.hasCachedCounts = true;
+            piece.cachedCapturesCount = this.bitboard.getCapturesCount(piece);
+        }
+        return piece.cachedCapturesCount;
+    }
+
+    /**
+     * used to calculate numbers of possible moves and captures for many chess pieces in parallel.
+     * board must not change during the call
+     * @param pieces ChessPiece[], chess pieces on this board
+     * @return int[], number of possible moves of pieces[i] at index 2 * i, number of captures at 2 * i + 1
+     */
+    public int[] getPiecesPossibleCounts(ChessPiece[] pieces) {
+        int[] counts = new int[2 * pieces.length];
+        this.hasCachedCounts = true;  // set before tasks are forked, so they only read it
+        if (this.size > SmallBitboard.MAX_SIZE) {
+            // sliding pieces cast rays through lazy index of the store, it is built here, so tasks only read it
+            this.positionsToPieces.buildIndex();
+        }
+        ForkJoinPool.commonPool().invoke(new PieceCountTask(this, pieces, counts, 0, pieces.length));
+        return counts;
     }
 
     /**
@@ -926,7 +994,7 @@ class Board {
     public void addPiece(ChessPiece piece) throws InvalidPiecePositionException, InvalidGivenKingsException {
         PiecePosition position = piece.getPosition();
         // checking kings on the board
-        if (piece.getClass().getName().equals("King")) {
+        if (piece instanceof King) {
             if (piece.getColor() == PieceColor.WHITE) {
                 if (hasWhiteKing) {  // there is white king already
                     throw new InvalidGivenKingsException();
@@ -940,12 +1008,107 @@ class Board {
             }
         }
 
-        if (this.positionsToPieces.get(position.toString()) != null) {
+        if (this.positionsToPieces.get(position.getX(), position.getY()) != null) {
             // if cell is already occupied
             throw new InvalidPiecePositionException();
         }
 
-        this.positionsToPieces.put(position.toString(), piece);
+        this.positionsToPieces.put(position.getX(), position.getY(), piece);
+        this.bitboard.add(piece);
+        piece.invalidateCounts();
+        invalidateAttackers(position.getX(), position.getY());
+    }
+
+    /**
+     * used to remove chess piece from board.
+     * only pieces that can reach the freed cell have their counts recalculated
+     * @param position PiecePosition, position of removed piece
+     * @return ChessPiece, removed piece
+     * @throws InvalidPiecePositionException if cell is empty or is out of board
+     */
+    public ChessPiece removePiece(PiecePosition position) throws InvalidPiecePositionException {
+        ChessPiece piece = this.positionsToPieces.remove(position.getX(), position.getY());
+        if (piece == null) {
+            throw new InvalidPiecePositionException();
+        }
+        this.bitboard.remove(piece);
+        if (piece instanceof King) {
+            if (piece.getColor() == PieceColor.WHITE) {
+                hasWhiteKing = false;
+            } else {
+                hasBlackKing = false;
+            }
+        }
+        invalidateAttackers(position.getX(), position.getY());
+        return piece;
+    }
+
+    /**
+     * used to move chess piece into empty cell, captured piece should be removed before.
+     * only the piece itself and pieces that can reach one of two cells have their counts recalculated
+     * @param from PiecePosition, position of moved piece
+     * @param to PiecePosition, new position of piece
+     * @throws InvalidPiecePositionException if there is no piece to move, or new cell is occupied or out of board
+     */
+    public void movePiece(PiecePosition from, PiecePosition to) throws InvalidPiecePositionException {
+        if (!to.isValid(this.size) || this.positionsToPieces.get(to.getX(), to.getY()) != null) {
+            throw new InvalidPiecePositionException();
+        }
+        ChessPiece piece = this.positionsToPieces.remove(from.getX(), from.getY());
+        if (piece == null) {
+            throw new InvalidPiecePositionException();
+        }
+        this.bitboard.remove(piece);
+        invalidateAttackers(from.getX(), from.getY());
+
+        piece.setPosition(to);
+        this.positionsToPieces.put(to.getX(), to.getY(), piece);
+        this.bitboard.add(piece);
+        invalidateAttackers(to.getX(), to.getY());
+    }
+
+    /**
+     * used to drop cached counts of pieces that attack or move to provided cell, after the cell is changed.
+     * these are the nearest sliding pieces in every direction, and Knights, Kings and Pawns in reach,
+     * so the work depends on neighbourhood of the cell rather than on number of pieces
+     * @param x int, X-coordinate of changed cell
+     * @param y int, Y-coordinate of changed cell
+     */
+    private void invalidateAttackers(int x, int y) {
+        if (!this.hasCachedCounts) {  // nothing to invalidate yet, board is being filled
+            return;
+        }
+        for (int i = 0; i < DIRECTION_X.length; i++) {  // sliding pieces
+            int distance = this.positionsToPieces.distanceToBlocker(x, y, DIRECTION_X[i], DIRECTION_Y[i]);
+            if (distance != 0) {
+                ChessPiece piece = this.positionsToPieces.get(x + DIRECTION_X[i] * distance,
+                        y + DIRECTION_Y[i] * distance);
+                // the first 4 directions are orthogonal
+                if (i < DIRECTION_X.length / 2 ? piece instanceof RookMovement : piece instanceof BishopMovement) {
+                    piece.invalidateCounts();
+                }
+            }
+        }
+        for (int i = 0; i < KNIGHT_X.length; i++) {
+            ChessPiece knight = this.positionsToPieces.get(x + KNIGHT_X[i], y + KNIGHT_Y[i]);
+            if (knight instanceof Knight) {
+                knight.invalidateCounts();
+            }
+            ChessPiece king = this.positionsToPieces.get(x + DIRECTION_X[i], y + DIRECTION_Y[i]);
+            if (king instanceof King) {
+                king.invalidateCounts();
+            }
+        }
+        for (int dx = -1; dx < 2; dx++) {  // Pawns that move forward into the cell or attack it
+            ChessPiece whitePawn = this.positionsToPieces.get(x + dx, y - 1);
+            if (whitePawn instanceof Pawn && whitePawn.getColor() == PieceColor.WHITE) {
+                whitePawn.invalidateCounts();
+            }
+            ChessPiece blackPawn = this.positionsToPieces.get(x + dx, y + 1);
+            if (blackPawn instanceof Pawn && blackPawn.getColor() == PieceColor.BLACK) {
+                blackPawn.invalidateCounts();
+            }
+        }
     }
 
     /**
@@ -954,7 +1117,7 @@ class Board {
      * @return ChessPiece
      */
     public ChessPiece getPiece(PiecePosition position) {
-        return this.positionsToPieces.get(position.toString());
+        return this.positionsToPieces.get(position.getX(), position.getY());
     }
 
     /**
@@ -969,6 +1132,1200 @@ class Board {
 }
 
 
+/**
+ * calculates numbers of possible moves and captures for a range of chess pieces, splitting it in halves
+ * until it is small enough. every piece is processed by one task only, so its lazily calculated
+ * possible positions are never shared between threads
+ */
+final class PieceCountTask extends RecursiveAction {
+    /**
+     * ranges of at most this number of pieces are processed without splitting.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 1024;
+
+    /**
+     * board with pieces, is not changed by tasks.
+     */
+    private final Board board;
+    /**
+     * all pieces to process.
+     */
+    private final ChessPiece[] pieces;
+    /**
+     * numbers of moves and captures, two per piece.
+     */
+    private final int[] counts;
+    /**
+     * index of the first piece of range.
+     */
+    private final int from;
+    /**
+     * index after the last piece of range.
+     */
+    private final int to;
+
+    /**
+     * creates a task for range of pieces.
+     * @param chessBoard Board, board with pieces
+     * @param allPieces ChessPiece[], all pieces to process
+     * @param result int[], numbers of moves and captures, two per piece
+     * @param fromIndex int, index of the first piece of range
+     * @param toIndex int, index after the last piece of range
+     */
+    PieceCountTask(Board chessBoard, ChessPiece[] allPieces, int[] result, int fromIndex, int toIndex) {
+        this.board = chessBoard;
+        this.pieces = allPieces;
+        this.counts = result;
+        this.from = fromIndex;
+        this.to = toIndex;
+    }
+
+    @Override
+    protected void compute() {
+        if (this.to - this.from <= SEQUENTIAL_THRESHOLD) {
+            for (int i = this.from; i < this.to; i++) {
+                this.counts[2 * i] = this.board.getPiecePossibleMoveCount(this.pieces[i]);
+                this.counts[2 * i + 1] = this.board.getPiecePossibleCapturesCount(this.pieces[i]);
+            }
+            return;
+        }
+        int middle = (this.from + this.to) >>> 1;
+        invokeAll(new PieceCountTask(this.board, this.pieces, this.counts, this.from, middle),
+                new PieceCountTask(this.board, this.pieces, this.counts, middle, this.to));
+    }
+}
+
+/**
+ * stores chess pieces by packed integer coordinates, so lookups do not allocate.
+ * starts as open-addressing hash map, which takes memory proportional to number of pieces,
+ * and turns into dense array indexed by cell when pieces occupy more than 1/DENSE_FRACTION of the board
+ */
+final class PieceStore {
+    /**
+     * store becomes dense when number of pieces exceeds number of cells divided by this value.
+     */
+    private static final int DENSE_FRACTION = 16;
+    /**
+     * initial capacity of hash map, power of two.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+    /**
+     * multiplier of Fibonacci hashing, 2^32 divided by golden ratio.
+     */
+    private static final int HASH_MULTIPLIER = 0x9E3779B9;
+
+    /**
+     * size of the board.
+     */
+    private final int size;
+    /**
+     * pieces indexed by cell, null while store is sparse.
+     */
+    private ChessPiece[] cells = null;
+    /**
+     * keys of hash map: cell index + 1, 0 for empty slot.
+     */
+    private int[] keys = new int[INITIAL_CAPACITY];
+    /**
+     * values of hash map, in the same slots as keys.
+     */
+    private ChessPiece[] values = new ChessPiece[INITIAL_CAPACITY];
+    /**
+     * number of stored pieces.
+     */
+    private int count = 0;
+    /**
+     * index of lines for ray casting, null until it is needed, then updated by every change.
+     */
+    private RayIndex blockers = null;
+
+    /**
+     * creates an empty store for the board of specified size.
+     * @param boardSize int, size of board
+     */
+    PieceStore(int boardSize) {
+        this.size = boardSize;
+    }
+
+    /**
+     * used to get chess piece by its coordinates.
+     * @param x int, X-coordinate
+     * @param y int, Y-coordinate
+     * @return ChessPiece, null if cell is empty or is out of board
+     */
+    public ChessPiece get(int x, int y) {
+        if (!PiecePosition.isValid(x, y, this.size)) {
+            return null;
+        }
+        int cell = (x - 1) * this.size + (y - 1);
+        if (this.cells != null) {
+            return this.cells[cell];
+        }
+        int mask = this.keys.length - 1;
+        int slot = getHomeSlot(cell);
+        while (this.keys[slot] != 0) {  // probe sequence ends at empty slot
+            if (this.keys[slot] == cell + 1) {
+                return this.values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * used to put chess piece into empty cell.
+     * @param x int, X-coordinate, valid on board
+     * @param y int, Y-coordinate, valid on board
+     * @param piece ChessPiece
+     */
+    public void put(int x, int y, ChessPiece piece) {
+        int cell = (x - 1) * this.size + (y - 1);
+        this.count++;
+        if (this.blockers != null) {
+            this.blockers.add(x, y);
+        }
+        if (this.cells == null && (long) this.count * DENSE_FRACTION > (long) this.size * this.size) {
+            // board is dense enough, so array of all cells takes less memory than hash map
+            this.cells = new ChessPiece[this.size * this.size];
+            for (int slot = 0; slot < this.keys.length; slot++) {
+                if (this.keys[slot] != 0) {
+                    this.cells[this.keys[slot] - 1] = this.values[slot];
+                }
+            }
+            this.keys = null;
+            this.values = null;
+        }
+        if (this.cells != null) {
+            this.cells[cell] = piece;
+            return;
+        }
+        if (2 * this.count > this.keys.length) {  // load factor is kept below 1/2
+            rehash(2 * this.keys.length);
+        }
+        insert(cell, piece);
+    }
+
+    /**
+     * used to remove chess piece from cell. dense store stays dense.
+     * @param x int, X-coordinate
+     * @param y int, Y-coordinate
+     * @return ChessPiece, removed piece, null if cell is empty or is out of board
+     */
+    public ChessPiece remove(int x, int y) {
+        if (!PiecePosition.isValid(x, y, this.size)) {
+            return null;
+        }
+        int cell = (x - 1) * this.size + (y - 1);
+        ChessPiece piece;
+        if (this.cells != null) {
+            piece = this.cells[cell];
+            this.cells[cell] = null;
+        } else {
+            int mask = this.keys.length - 1;
+            int slot = getHomeSlot(cell);
+            while (this.keys[slot] != 0 && this.keys[slot] != cell + 1) {
+                slot = (slot + 1) & mask;
+            }
+            piece = this.values[slot];  // null if slot is empty
+            if (piece != null) {
+                deleteSlot(slot);
+            }
+        }
+        if (piece != null) {
+            this.count--;
+            if (this.blockers != null) {
+                this.blockers.remove(x, y);
+            }
+        }
+        return piece;
+    }
+
+    /**
+     * used to find the nearest piece in provided direction.
+     * index of lines is built on the first call after changes, so pieces should be added before rays are cast
+     * @param x int, X-coordinate of start
+     * @param y int, Y-coordinate of start
+     * @param dx int, step in X-coordinate: -1, 0 or 1
+     * @param dy int, step in Y-coordinate: -1, 0 or 1, not 0 if dx is 0
+     * @return int, number of steps to the nearest piece, 0 if there is no piece until border
+     */
+    public int distanceToBlocker(int x, int y, int dx, int dy) {
+        buildIndex();
+        return this.blockers.distanceToBlocker(x, y, dx, dy);
+    }
+
+    /**
+     * used to build index of lines if it is not built yet, after that it is updated by every change.
+     * should be called before rays are cast from several threads, since building is not synchronized
+     */
+    public void buildIndex() {
+        if (this.blockers == null) {
+            // bitsets take fixed memory per line, so they are used only when the board is dense
+            this.blockers = this.cells != null ? new LineBitboard(this.size, getOccupiedCells())
+                    : new BlockerIndex(this.size, getOccupiedCells());
+        }
+    }
+
+    /**
+     * used to list occupied cells.
+     * @return int[], occupied cells in ascending order
+     */
+    private int[] getOccupiedCells() {
+        int[] result = new int[this.count];
+        int filled = 0;
+        if (this.cells != null) {
+            for (int cell = 0; cell < this.cells.length; cell++) {
+                if (this.cells[cell] != null) {
+                    result[filled++] = cell;
+                }
+            }
+            return result;
+        }
+        for (int key : this.keys) {
+            if (key != 0) {
+                result[filled++] = key - 1;
+            }
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private int getHomeSlot(int cell) {
+        return (cell * HASH_MULTIPLIER) >>> Integer.numberOfLeadingZeros(this.keys.length - 1);
+    }
+
+    private void insert(int cell, ChessPiece piece) {
+        int mask = this.keys.length - 1;
+        int slot = getHomeSlot(cell);
+        while (this.keys[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = cell + 1;
+        this.values[slot] = piece;
+    }
+
+    /**
+     * empties slot of hash map, shifting back following keys of probe sequence, so lookups do not need markers.
+     * @param slot int, occupied slot
+     */
+    private void deleteSlot(int slot) {
+        int mask = this.keys.length - 1;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; this.keys[next] != 0; next = (next + 1) & mask) {
+            int home = getHomeSlot(this.keys[next] - 1);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {  // key is still reachable from its home slot
+                this.keys[hole] = this.keys[next];
+                this.values[hole] = this.values[next];
+                hole = next;
+            }
+        }
+        this.keys[hole] = 0;
+        this.values[hole] = null;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = this.keys;
+        ChessPiece[] oldValues = this.values;
+        this.keys = new int[capacity];
+        this.values = new ChessPiece[capacity];
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != 0) {
+                insert(oldKeys[slot] - 1, oldValues[slot]);
+            }
+        }
+    }
+}
+
+
+/**
+ * sorted occupancy of every file, rank, diagonal and anti-diagonal of the board.
+ * used to find the nearest piece on a ray by binary search, so ray casting does not depend on board size
+ */
+final class BlockerIndex implements RayIndex {
+    /**
+     * occupancy of empty line.
+     */
+    private static final int[] EMPTY_LINE = new int[0];
+
+    /**
+     * size of the board.
+     */
+    private final int size;
+    /**
+     * sorted Y-coordinates of pieces, indexed by X-coordinate - 1.
+     */
+    private final int[][] files;
+    /**
+     * sorted X-coordinates of pieces, indexed by Y-coordinate - 1.
+     */
+    private final int[][] ranks;
+    /**
+     * sorted X-coordinates of pieces on diagonals where x - y is constant, indexed by x - y + size - 1.
+     */
+    private final int[][] diagonals;
+    /**
+     * sorted X-coordinates of pieces on anti-diagonals where x + y is constant, indexed by x + y - 2.
+     */
+    private final int[][] antiDiagonals;
+
+    /**
+     * builds index of occupied cells.
+     * @param boardSize int, size of board
+     * @param cells int[], occupied cells in ascending order, cell is (x - 1) * boardSize + (y - 1)
+     */
+    BlockerIndex(int boardSize, int[] cells) {
+        this.size = boardSize;
+        this.files = new int[boardSize][];
+        this.ranks = new int[boardSize][];
+        this.diagonals = new int[2 * boardSize - 1][];
+        this.antiDiagonals = new int[2 * boardSize - 1][];
+
+        // counting pieces of every line to allocate exact arrays
+        int[] fileCounts = new int[this.files.length];
+        int[] rankCounts = new int[this.ranks.length];
+        int[] diagonalCounts = new int[this.diagonals.length];
+        int[] antiDiagonalCounts = new int[this.antiDiagonals.length];
+        for (int cell : cells) {
+            int x = cell / boardSize + 1;
+            int y = cell % boardSize + 1;
+            fileCounts[x - 1]++;
+            rankCounts[y - 1]++;
+            diagonalCounts[x - y + boardSize - 1]++;
+            antiDiagonalCounts[x + y - 2]++;
+        }
+        allocate(this.files, fileCounts);
+        allocate(this.ranks, rankCounts);
+        allocate(this.diagonals, diagonalCounts);
+        allocate(this.antiDiagonals, antiDiagonalCounts);
+
+        // cells go in ascending order of x and then y, so every line is filled already sorted
+        int[] fileFilled = new int[this.files.length];
+        int[] rankFilled = new int[this.ranks.length];
+        int[] diagonalFilled = new int[this.diagonals.length];
+        int[] antiDiagonalFilled = new int[this.antiDiagonals.length];
+        for (int cell : cells) {
+            int x = cell / boardSize + 1;
+            int y = cell % boardSize + 1;
+            this.files[x - 1][fileFilled[x - 1]++] = y;
+            this.ranks[y - 1][rankFilled[y - 1]++] = x;
+            this.diagonals[x - y + boardSize - 1][diagonalFilled[x - y + boardSize - 1]++] = x;
+            this.antiDiagonals[x + y - 2][antiDiagonalFilled[x + y - 2]++] = x;
+        }
+    }
+
+    private static void allocate(int[][] lines, int[] counts) {
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = counts[i] == 0 ? EMPTY_LINE : new int[counts[i]];
+        }
+    }
+
+    /**
+     * used to find the nearest piece in provided direction.
+     * @param x int, X-coordinate of start
+     * @param y int, Y-coordinate of start
+     * @param dx int, step in X-coordinate: -1, 0 or 1
+     * @param dy int, step in Y-coordinate: -1, 0 or 1, not 0 if dx is 0
+     * @return int, number of steps to the nearest piece, 0 if there is no piece until border
+     */
+    @Override
+    public int distanceToBlocker(int x, int y, int dx, int dy) {
+        if (dx == 0) {  // file, keys are Y-coordinates
+            return distanceInLine(this.files[x - 1], y, dy);
+        } else if (dy == 0) {  // rank
+            return distanceInLine(this.ranks[y - 1], x, dx);
+        } else if (dx == dy) {
+            return distanceInLine(this.diagonals[x - y + this.size - 1], x, dx);
+        } else {
+            return distanceInLine(this.antiDiagonals[x + y - 2], x, dx);
+        }
+    }
+
+    /**
+     * used to mark cell as occupied. lines are kept as exact sorted arrays,
+     * so changed lines are copied, which takes time proportional to their length
+     * @param x int, X-coordinate of empty cell
+     * @param y int, Y-coordinate of empty cell
+     */
+    @Override
+    public void add(int x, int y) {
+        this.files[x - 1] = insertKey(this.files[x - 1], y);
+        this.ranks[y - 1] = insertKey(this.ranks[y - 1], x);
+        this.diagonals[x - y + this.size - 1] = insertKey(this.diagonals[x - y + this.size - 1], x);
+        this.antiDiagonals[x + y - 2] = insertKey(this.antiDiagonals[x + y - 2], x);
+    }
+
+    @Override
+    public void remove(int x, int y) {
+        this.files[x - 1] = removeKey(this.files[x - 1], y);
+        this.ranks[y - 1] = removeKey(this.ranks[y - 1], x);
+        this.diagonals[x - y + this.size - 1] = removeKey(this.diagonals[x - y + this.size - 1], x);
+        this.antiDiagonals[x + y - 2] = removeKey(this.antiDiagonals[x + y - 2], x);
+    }
+
+    private static int[] insertKey(int[] line, int key) {
+        int insertionPoint = -Arrays.binarySearch(line, key) - 1;  // key is absent
+        int[] result = new int[line.length + 1];
+        System.arraycopy(line, 0, result, 0, insertionPoint);
+        result[insertionPoint] = key;
+        System.arraycopy(line, insertionPoint, result, insertionPoint + 1, line.length - insertionPoint);
+        return result;
+    }
+
+    private static int[] removeKey(int[] line, int key) {
+        if (line.length == 1) {
+            return EMPTY_LINE;
+        }
+        int index = Arrays.binarySearch(line, key);  // key is present
+        int[] result = new int[line.length - 1];
+        System.arraycopy(line, 0, result, 0, index);
+        System.arraycopy(line, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    private static int distanceInLine(int[] line, int key, int step) {
+        int index = Arrays.binarySearch(line, key);
+        int next;  // index of the nearest key in direction of step
+        if (index >= 0) {  // start is occupied itself
+            next = index + step;
+        } else {
+            int insertionPoint = -index - 1;
+            next = step > 0 ? insertionPoint : insertionPoint - 1;
+        }
+        if (next < 0 || next >= line.length) {
+            return 0;
+        }
+        return Math.abs(line[next] - key);
+    }
+}
+
+
+/**
+ * index of lines that can find the nearest piece on a ray.
+ */
+interface RayIndex {
+    /**
+     * used to find the nearest piece in provided direction.
+     * @param x int, X-coordinate of start
+     * @param y int, Y-coordinate of start
+     * @param dx int, step in X-coordinate: -1, 0 or 1
+     * @param dy int, step in Y-coordinate: -1, 0 or 1, not 0 if dx is 0
+     * @return int, number of steps to the nearest piece, 0 if there is no piece until border
+     */
+    int distanceToBlocker(int x, int y, int dx, int dy);
+
+    /**
+     * used to mark cell as occupied.
+     * @param x int, X-coordinate of empty cell
+     * @param y int, Y-coordinate of empty cell
+     */
+    void add(int x, int y);
+
+    /**
+     * used to mark cell as empty.
+     * @param x int, X-coordinate of occupied cell
+     * @param y int, Y-coordinate of occupied cell
+     */
+    void remove(int x, int y);
+}
+
+
+/**
+ * occupancy of every file, rank, diagonal and anti-diagonal of the board as multi-word bitsets.
+ * the nearest piece on a ray is the nearest set bit of the line, found by scanning whole words,
+ * so on dense boards it is usually found in the first word
+ */
+final class LineBitboard implements RayIndex {
+    /**
+     * size of the board.
+     */
+    private final int size;
+    /**
+     * bits y - 1 of pieces, indexed by X-coordinate - 1.
+     */
+    private final BitSet[] files;
+    /**
+     * bits x - 1 of pieces, indexed by Y-coordinate - 1.
+     */
+    private final BitSet[] ranks;
+    /**
+     * bits x - 1 of pieces on diagonals where x - y is constant, indexed by x - y + size - 1.
+     */
+    private final BitSet[] diagonals;
+    /**
+     * bits x - 1 of pieces on anti-diagonals where x + y is constant, indexed by x + y - 2.
+     */
+    private final BitSet[] antiDiagonals;
+
+    /**
+     * builds bitsets of occupied cells.
+     * @param boardSize int, size of board
+     * @param cells int[], occupied cells, cell is (x - 1) * boardSize + (y - 1)
+     */
+    LineBitboard(int boardSize, int[] cells) {
+        this.size = boardSize;
+        this.files = createLines(boardSize, boardSize);
+        this.ranks = createLines(boardSize, boardSize);
+        this.diagonals = createLines(2 * boardSize - 1, boardSize);
+        this.antiDiagonals = createLines(2 * boardSize - 1, boardSize);
+        for (int cell : cells) {
+            add(cell / boardSize + 1, cell % boardSize + 1);
+        }
+    }
+
+    private static BitSet[] createLines(int number, int length) {
+        BitSet[] lines = new BitSet[number];
+        for (int i = 0; i < number; i++) {
+            lines[i] = new BitSet(length);
+        }
+        return lines;
+    }
+
+    @Override
+    public int distanceToBlocker(int x, int y, int dx, int dy) {
+        if (dx == 0) {  // file, bits are Y-coordinates
+            return distanceInLine(this.files[x - 1], y - 1, dy);
+        } else if (dy == 0) {  // rank
+            return distanceInLine(this.ranks[y - 1], x - 1, dx);
+        } else if (dx == dy) {
+            return distanceInLine(this.diagonals[x - y + this.size - 1], x - 1, dx);
+        } else {
+            return distanceInLine(this.antiDiagonals[x + y - 2], x - 1, dx);
+        }
+    }
+
+    @Override
+    public void add(int x, int y) {
+        this.files[x - 1].set(y - 1);
+        this.ranks[y - 1].set(x - 1);
+        this.diagonals[x - y + this.size - 1].set(x - 1);
+        this.antiDiagonals[x + y - 2].set(x - 1);
+    }
+
+    @Override
+    public void remove(int x, int y) {
+        this.files[x - 1].clear(y - 1);
+        this.ranks[y - 1].clear(x - 1);
+        this.diagonals[x - y + this.size - 1].clear(x - 1);
+        this.antiDiagonals[x + y - 2].clear(x - 1);
+    }
+
+    private static int distanceInLine(BitSet line, int bit, int step) {
+        int next = step > 0 ? line.nextSetBit(bit + 1) : line.previousSetBit(bit - 1);  // -1 if there is none
+        return next < 0 ? 0 : Math.abs(next - bit);
+    }
+}
+
+
+/**
+ * occupancy of the board that counts moves and captures of its pieces, the same as ChessPiece does.
+ */
+interface Bitboard {
+    /**
+     * used to put chess piece on bitboard.
+     * @param piece ChessPiece
+     */
+    void add(ChessPiece piece);
+
+    /**
+     * used to take chess piece off bitboard.
+     * @param piece ChessPiece on bitboard
+     */
+    void remove(ChessPiece piece);
+
+    /**
+     * used to calculate number of possible moves, the same as ChessPiece.getMovesCount does.
+     * @param piece ChessPiece on bitboard
+     * @return int, number of possible moves
+     */
+    int getMovesCount(ChessPiece piece);
+
+    /**
+     * used to calculate number of possible captures, the same as ChessPiece.getCapturesCount does.
+     * @param piece ChessPiece on bitboard
+     * @return int, number of possible captures
+     */
+    int getCapturesCount(ChessPiece piece);
+}
+
+
+/**
+ * bitboard for boards up to 8x8: occupancy of every color is one long, bit of cell is (x - 1) * size + (y - 1).
+ * moves and captures are counted by popcount of attack masks, attacks of Knight and King are precomputed
+ * for every cell, attacks of sliding pieces are built from precomputed rays cut at the first blocker
+ */
+final class SmallBitboard implements Bitboard {
+    /**
+     * the biggest size of the board whose cells fit into long.
+     */
+    static final int MAX_SIZE = 8;
+    /**
+     * multipliers for X-coordinate of directions: the first 4 directions go to higher bits, the last 4 are opposite.
+     */
+    private static final int[] DIRECTION_X = {1, 0, 1, 1, -1, 0, -1, -1};
+    /**
+     * same as DIRECTION_X but for Y-coordinates.
+     */
+    private static final int[] DIRECTION_Y = {0, 1, 1, -1, 0, -1, -1, 1};
+    /**
+     * indices of orthogonal directions in DIRECTION_X and DIRECTION_Y.
+     */
+    private static final int[] ORTHOGONAL_DIRECTIONS = {0, 1, 4, 5};
+    /**
+     * indices of diagonal directions in DIRECTION_X and DIRECTION_Y.
+     */
+    private static final int[] DIAGONAL_DIRECTIONS = {2, 3, 6, 7};
+
+    /**
+     * size of the board.
+     */
+    private final int size;
+    /**
+     * attacks of Knight, indexed by bit of its cell.
+     */
+    private final long[] knightAttacks;
+    /**
+     * attacks of King, indexed by bit of its cell.
+     */
+    private final long[] kingAttacks;
+    /**
+     * cells from cell to border in every direction, excluding the cell itself; indexed by direction and bit.
+     */
+    private final long[][] rays;
+    /**
+     * cells of white pieces.
+     */
+    private long white = 0;
+    /**
+     * cells of black pieces.
+     */
+    private long black = 0;
+
+    /**
+     * creates an empty bitboard and precomputes attack tables for provided size.
+     * @param boardSize int, size of board, at most MAX_SIZE
+     */
+    SmallBitboard(int boardSize) {
+        this.size = boardSize;
+        this.knightAttacks = new long[boardSize * boardSize];
+        this.kingAttacks = new long[boardSize * boardSize];
+        this.rays = new long[DIRECTION_X.length][boardSize * boardSize];
+        for (int x = 1; x <= boardSize; x++) {
+            for (int y = 1; y <= boardSize; y++) {
+                int bit = getBit(x, y);
+                for (int i = 0; i < Board.KNIGHT_X.length; i++) {
+                    this.knightAttacks[bit] |= getMask(x + Board.KNIGHT_X[i], y + Board.KNIGHT_Y[i]);
+                    this.kingAttacks[bit] |= getMask(x + DIRECTION_X[i], y + DIRECTION_Y[i]);
+                    for (int offset = 1; offset < boardSize; offset++) {
+                        this.rays[i][bit] |= getMask(x + DIRECTION_X[i] * offset, y + DIRECTION_Y[i] * offset);
+                    }
+                }
+            }
+        }
+    }
+
+    private int getBit(int x, int y) {
+        return (x - 1) * this.size + (y - 1);
+    }
+
+    /**
+     * @param x int, X-coordinate
+     * @param y int, Y-coordinate
+     * @return long, mask with bit of cell, 0 if cell is out of board
+     */
+    private long getMask(int x, int y) {
+        return PiecePosition.isValid(x, y, this.size) ? 1L << getBit(x, y) : 0;
+    }
+
+    /**
+     * used to put chess piece on bitboard.
+     * @param piece ChessPiece
+     */
+    @Override
+    public void add(ChessPiece piece) {
+        long mask = getMask(piece.getPosition().getX(), piece.getPosition().getY());
+        if (piece.getColor() == PieceColor.WHITE) {
+            this.white |= mask;
+        } else {
+            this.black |= mask;
+        }
+    }
+
+    /**
+     * used to take chess piece off bitboard.
+     * @param piece ChessPiece on bitboard
+     */
+    @Override
+    public void remove(ChessPiece piece) {
+        long mask = getMask(piece.getPosition().getX(), piece.getPosition().getY());
+        this.white &= ~mask;
+        this.black &= ~mask;
+    }
+
+    /**
+     * used to calculate number of possible moves, the same as ChessPiece.getMovesCount does.
+     * @param piece ChessPiece on bitboard
+     * @return int, number of possible moves
+     */
+    @Override
+    public int getMovesCount(ChessPiece piece) {
+        long own = piece.getColor() == PieceColor.WHITE ? this.white : this.black;
+        if (piece instanceof Pawn) {  // moves forward only to empty cell, and captures
+            long forward = getMask(piece.getPosition().getX(), piece.getPosition().getY() + getPawnDirection(piece));
+            return Long.bitCount(forward & ~(this.white | this.black)) + getCapturesCount(piece);
+        }
+        return Long.bitCount(getAttacks(piece) & ~own);
+    }
+
+    /**
+     * used to calculate number of possible captures, the same as ChessPiece.getCapturesCount does.
+     * @param piece ChessPiece on bitboard
+     * @return int, number of possible captures
+     */
+    @Override
+    public int getCapturesCount(ChessPiece piece) {
+        long enemy = piece.getColor() == PieceColor.WHITE ? this.black : this.white;
+        return Long.bitCount(getAttacks(piece) & enemy);
+    }
+
+    private static int getPawnDirection(ChessPiece piece) {
+        return piece.getColor() == PieceColor.WHITE ? 1 : -1;
+    }
+
+    /**
+     * @param piece ChessPiece on bitboard
+     * @return long, cells that piece attacks, including cells of its own color
+     */
+    private long getAttacks(ChessPiece piece) {
+        int x = piece.getPosition().getX();
+        int y = piece.getPosition().getY();
+        int bit = getBit(x, y);
+        if (piece instanceof Pawn) {
+            int direction = getPawnDirection(piece);
+            return getMask(x - 1, y + direction) | getMask(x + 1, y + direction);
+        } else if (piece instanceof Knight) {
+            return this.knightAttacks[bit];
+        } else if (piece instanceof King) {
+            return this.kingAttacks[bit];
+        }
+        long attacks = 0;
+        if (piece instanceof BishopMovement) {  // Bishop and Queen
+            attacks |= getSlidingAttacks(bit, DIAGONAL_DIRECTIONS);
+        }
+        if (piece instanceof RookMovement) {  // Rook and Queen
+            attacks |= getSlidingAttacks(bit, ORTHOGONAL_DIRECTIONS);
+        }
+        return attacks;
+    }
+
+    private long getSlidingAttacks(int bit, int[] directions) {
+        long occupied = this.white | this.black;
+        long attacks = 0;
+        for (int direction : directions) {
+            long ray = this.rays[direction][bit];
+            long blockers = ray & occupied;
+            if (blockers != 0) {  // ray is cut after the nearest blocker, which is still attacked
+                int nearest = direction < DIRECTION_X.length / 2 ? Long.numberOfTrailingZeros(blockers)
+                        : Long.SIZE - 1 - Long.numberOfLeadingZeros(blockers);
+                ray ^= this.rays[direction][nearest];
+            }
+            attacks |= ray;
+        }
+        return attacks;
+    }
+}
+
+
+/**
+ * bitboard for boards bigger than SmallBitboard.MAX_SIZE: occupancy of every color is a multi-word bitset
+ * per file, bit y - 1 of file x - 1 is set for occupied cell.
+ * attacks of Knight, King and Pawn are masks over a window of WINDOW cells of every file in their reach,
+ * so their moves and captures are popcounts of masked windows; sliding pieces are counted by rays of PieceStore
+ */
+final class LargeBitboard implements Bitboard {
+    /**
+     * number of cells in window of file, from y - 2 to y + 2.
+     */
+    private static final int WINDOW = 5;
+    /**
+     * all cells of window.
+     */
+    private static final long WINDOW_MASK = (1L << WINDOW) - 1;
+    /**
+     * attacks of Knight in files from x - 2 to x + 2, bit i of mask is cell y - 2 + i.
+     */
+    private static final long[] KNIGHT_MASKS = {0b01010, 0b10001, 0, 0b10001, 0b01010};
+    /**
+     * same as KNIGHT_MASKS but for King.
+     */
+    private static final long[] KING_MASKS = {0, 0b01110, 0b01010, 0b01110, 0};
+    /**
+     * same as KNIGHT_MASKS but for captures of white Pawn.
+     */
+    private static final long[] WHITE_PAWN_MASKS = {0, 0b01000, 0, 0b01000, 0};
+    /**
+     * same as KNIGHT_MASKS but for captures of black Pawn.
+     */
+    private static final long[] BLACK_PAWN_MASKS = {0, 0b00010, 0, 0b00010, 0};
+
+    /**
+     * size of the board.
+     */
+    private final int size;
+    /**
+     * store of the same board, used to count moves of sliding pieces.
+     */
+    private final PieceStore positions;
+    /**
+     * bitsets of files with white pieces, indexed by X-coordinate - 1 and then by word.
+     */
+    private final long[][] white;
+    /**
+     * same as white but for black pieces.
+     */
+    private final long[][] black;
+
+    /**
+     * creates an empty bitboard.
+     * @param boardSize int, size of board, bigger than SmallBitboard.MAX_SIZE
+     * @param store PieceStore, store of the same board
+     */
+    LargeBitboard(int boardSize, PieceStore store) {
+        this.size = boardSize;
+        this.positions = store;
+        int words = (boardSize + Long.SIZE - 1) / Long.SIZE;
+        this.white = new long[boardSize][words];
+        this.black = new long[boardSize][words];
+    }
+
+    @Override
+    public void add(ChessPiece piece) {
+        int y = piece.getPosition().getY();
+        getFiles(piece.getColor())[piece.getPosition().getX() - 1][(y - 1) / Long.SIZE] |= 1L << (y - 1);
+    }
+
+    @Override
+    public void remove(ChessPiece piece) {
+        int y = piece.getPosition().getY();
+        getFiles(piece.getColor())[piece.getPosition().getX() - 1][(y - 1) / Long.SIZE] &= ~(1L << (y - 1));
+    }
+
+    @Override
+    public int getMovesCount(ChessPiece piece) {
+        long[] masks = getMasks(piece);
+        if (masks == null) {
+            return piece.getMovesCount(this.positions, this.size);
+        }
+        int x = piece.getPosition().getX();
+        int from = piece.getPosition().getY() - 1 - WINDOW / 2;
+        long onBoard = getBoardWindow(from);
+        if (piece instanceof Pawn) {  // moves forward only to empty cell, and captures
+            long forward = masks[WINDOW / 2 - 1];  // forward cell is in the same row as captures
+            long occupied = getWindow(this.white[x - 1], from) | getWindow(this.black[x - 1], from);
+            return Long.bitCount(forward & onBoard & ~occupied) + getCapturesCount(piece);
+        }
+        long[][] own = getFiles(piece.getColor());
+        int result = 0;
+        for (int dx = -WINDOW / 2; dx <= WINDOW / 2; dx++) {
+            long mask = masks[dx + WINDOW / 2];
+            if (mask != 0 && x + dx >= 1 && x + dx <= this.size) {
+                result += Long.bitCount(mask & onBoard & ~getWindow(own[x + dx - 1], from));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int getCapturesCount(ChessPiece piece) {
+        long[] masks = getMasks(piece);
+        if (masks == null) {
+            return piece.getCapturesCount(this.positions, this.size);
+        }
+        int x = piece.getPosition().getX();
+        int from = piece.getPosition().getY() - 1 - WINDOW / 2;
+        long[][] enemy = getFiles(piece.getColor() == PieceColor.WHITE ? PieceColor.BLACK : PieceColor.WHITE);
+        int result = 0;
+        for (int dx = -WINDOW / 2; dx <= WINDOW / 2; dx++) {
+            long mask = masks[dx + WINDOW / 2];
+            if (mask != 0 && x + dx >= 1 && x + dx <= this.size) {  // cells out of board are never set
+                result += Long.bitCount(mask & getWindow(enemy[x + dx - 1], from));
+            }
+        }
+        return result;
+    }
+
+    private long[][] getFiles(PieceColor color) {
+        return color == PieceColor.WHITE ? this.white : this.black;
+    }
+
+    /**
+     * @param piece ChessPiece on bitboard
+     * @return long[], attack masks of piece, null for sliding pieces
+     */
+    private static long[] getMasks(ChessPiece piece) {
+        if (piece instanceof Knight) {
+            return KNIGHT_MASKS;
+        } else if (piece instanceof King) {
+            return KING_MASKS;
+        } else if (piece instanceof Pawn) {
+            return piece.getColor() == PieceColor.WHITE ? WHITE_PAWN_MASKS : BLACK_PAWN_MASKS;
+        }
+        return null;
+    }
+
+    /**
+     * @param from int, bit of the first cell of window, negative if window starts before border
+     * @return long, cells of window that are on the board
+     */
+    private long getBoardWindow(int from) {
+        long result = WINDOW_MASK;
+        if (from < 0) {
+            result &= WINDOW_MASK << -from;
+        }
+        if (from + WINDOW > this.size) {
+            result &= WINDOW_MASK >>> (from + WINDOW - this.size);
+        }
+        return result;
+    }
+
+    /**
+     * @param file long[], bitset of file
+     * @param from int, bit of the first cell of window, negative if window starts before border
+     * @return long, bits of cells of window, cells out of board are empty
+     */
+    private static long getWindow(long[] file, int from) {
+        if (from < 0) {
+            return (file[0] << -from) & WINDOW_MASK;
+        }
+        int word = from / Long.SIZE;
+        int shift = from % Long.SIZE;
+        long result = file[word] >>> shift;
+        if (shift > Long.SIZE - WINDOW && word + 1 < file.length) {  // window continues in the next word
+            result |= file[word + 1] << (Long.SIZE - shift);
+        }
+        return result & WINDOW_MASK;
+    }
+}
+
+
+/**
+ * randomized check of incremental changes of Board, it is not used by Main and is run as "java BoardCheck [seed]".
+ * pieces are added, removed and moved on boards of different sizes and densities, and counts of every piece
+ * are compared with counts of the same piece on a board rebuilt from scratch
+ */
+final class BoardCheck {
+    /**
+     * sizes of checked boards: small bitboard, its border, one and several words of large bitboard.
+     */
+    private static final int[] SIZES = {3, 5, 8, 9, 16, 63, 64, 65, 130};
+    /**
+     * fractions of cells occupied before changes.
+     */
+    private static final double[] DENSITIES = {0.05, 0.3, 0.8};
+    /**
+     * number of changes of every board.
+     */
+    private static final int OPERATIONS = 300;
+    /**
+     * board is compared with rebuilt one after every CHECK_PERIOD changes and after the last one.
+     */
+    private static final int CHECK_PERIOD = 7;
+    /**
+     * types of pieces, a King is added only if there is no King of its color.
+     */
+    private static final String[] PIECE_TYPES = {"Pawn", "Knight", "Rook", "Queen", "Bishop", "King"};
+
+    /**
+     * random source of the check.
+     */
+    private final Random random;
+    /**
+     * size of current board.
+     */
+    private final int size;
+    /**
+     * checked board.
+     */
+    private final Board board;
+    /**
+     * pieces on checked board.
+     */
+    private final List<ChessPiece> pieces = new ArrayList<>();
+    /**
+     * types of pieces, in the same order as pieces.
+     */
+    private final List<String> types = new ArrayList<>();
+    /**
+     * occupancy of cells, cell is (x - 1) * size + (y - 1).
+     */
+    private final boolean[] occupied;
+
+    private BoardCheck(Random randomSource, int boardSize) throws InvalidBoardSizeException {
+        this.random = randomSource;
+        this.size = boardSize;
+        this.board = new Board(boardSize);
+        this.occupied = new boolean[boardSize * boardSize];
+    }
+
+    /**
+     * entrypoint of check.
+     * @param args command line arguments: optional seed of random source
+     * @throws Exception if board rejects a valid change
+     */
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 42);
+        int failed = 0;
+        for (int boardSize : SIZES) {
+            for (double density : DENSITIES) {
+                String failure = new BoardCheck(random, boardSize).run(density);
+                if (failure != null) {
+                    System.out.println("size " + boardSize + ", density " + density + ": " + failure);
+                    failed++;
+                }
+            }
+        }
+        System.out.println("boards: " + SIZES.length * DENSITIES.length + ", failed: " + failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * fills the board, then changes it and compares it with rebuilt board.
+     * @param density double, fraction of cells occupied before changes
+     * @return String, description of the first mismatch, null if there is none
+     * @throws Exception if board rejects a valid change
+     */
+    private String run(double density) throws Exception {
+        int initial = Math.max(2, (int) (density * this.size * this.size));
+        while (this.pieces.size() < initial) {
+            addRandomPiece();
+        }
+        this.board.getPiecesPossibleCounts(this.pieces.toArray(new ChessPiece[0]));  // counts are cached from now
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            int kind = this.random.nextInt(3);
+            if (kind == 0 && !this.pieces.isEmpty()) {
+                removeRandomPiece();
+            } else if (kind == 1 && !this.pieces.isEmpty()) {
+                moveRandomPiece();
+            } else if (this.pieces.size() < this.occupied.length) {
+                addRandomPiece();
+            }
+            if (operation % CHECK_PERIOD == 0 || operation == OPERATIONS - 1) {
+                String failure = compareWithRebuilt();
+                if (failure != null) {
+                    return "operation " + operation + ", " + failure;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void addRandomPiece() throws Exception {
+        int x = this.random.nextInt(this.size) + 1;
+        int y = this.random.nextInt(this.size) + 1;
+        if (this.occupied[getCell(x, y)]) {
+            return;
+        }
+        String type = PIECE_TYPES[this.random.nextInt(PIECE_TYPES.length)];
+        ChessPiece piece = createPiece(type, new PiecePosition(x, y),
+                this.random.nextBoolean() ? PieceColor.WHITE : PieceColor.BLACK);
+        try {
+            this.board.addPiece(piece);
+        } catch (InvalidGivenKingsException ex) {  // there is a King of this color already
+            return;
+        }
+        this.occupied[getCell(x, y)] = true;
+        this.pieces.add(piece);
+        this.types.add(type);
+    }
+
+    private void removeRandomPiece() throws InvalidPiecePositionException {
+        int index = this.random.nextInt(this.pieces.size());
+        PiecePosition position = this.pieces.get(index).getPosition();
+        if (this.board.removePiece(position) != this.pieces.get(index)) {
+            throw new IllegalStateException("another piece is removed from " + position);
+        }
+        this.occupied[getCell(position.getX(), position.getY())] = false;
+        this.pieces.remove(index);
+        this.types.remove(index);
+    }
+
+    /**
+     * moves random piece nearby or anywhere, a move into occupied cell or out of board must be rejected.
+     * @throws InvalidPiecePositionException if board rejects a valid move
+     */
+    private void moveRandomPiece() throws InvalidPiecePositionException {
+        ChessPiece piece = this.pieces.get(this.random.nextInt(this.pieces.size()));
+        PiecePosition from = piece.getPosition();
+        int x = from.getX() + this.random.nextInt(5) - 2;
+        int y = from.getY() + this.random.nextInt(5) - 2;
+        if (this.random.nextInt(4) == 0) {
+            x = this.random.nextInt(this.size) + 1;
+            y = this.random.nextInt(this.size) + 1;
+        }
+        PiecePosition to = new PiecePosition(x, y);
+        if (!to.isValid(this.size) || this.occupied[getCell(x, y)]) {
+            try {
+                this.board.movePiece(from, to);
+            } catch (InvalidPiecePositionException ex) {
+                return;
+            }
+            throw new IllegalStateException("move from " + from + " to " + to + " is not rejected");
+        }
+        this.board.movePiece(from, to);
+        this.occupied[getCell(from.getX(), from.getY())] = false;
+        this.occupied[getCell(x, y)] = true;
+    }
+
+    /**
+     * @return String, description of the first piece whose counts differ on rebuilt board, null if there is none
+     * @throws Exception if rebuilt board rejects a piece
+     */
+    private String compareWithRebuilt() throws Exception {
+        Board rebuilt = new Board(this.size);
+        ChessPiece[] copies = new ChessPiece[this.pieces.size()];
+        for (int i = 0; i < copies.length; i++) {
+            ChessPiece piece = this.pieces.get(i);
+            copies[i] = createPiece(this.types.get(i), piece.getPosition(), piece.getColor());
+            rebuilt.addPiece(copies[i]);
+        }
+        for (int i = 0; i < copies.length; i++) {
+            ChessPiece piece = this.pieces.get(i);
+            int moves = this.board.getPiecePossibleMoveCount(piece);
+            int captures = this.board.getPiecePossibleCapturesCount(piece);
+            int expectedMoves = rebuilt.getPiecePossibleMoveCount(copies[i]);
+            int expectedCaptures = rebuilt.getPiecePossibleCapturesCount(copies[i]);
+            if (moves != expectedMoves || captures != expectedCaptures) {
+                return this.types.get(i) + " " + piece.getColor() + " " + piece.getPosition() + ": " + moves + " "
+                        + captures + " instead of " + expectedMoves + " " + expectedCaptures;
+            }
+        }
+        return null;
+    }
+
+    private int getCell(int x, int y) {
+        return (x - 1) * this.size + (y - 1);
+    }
+
+    private static ChessPiece createPiece(String type, PiecePosition position, PieceColor color) {
+        switch (type) {
+            case "Pawn":
+                return new Pawn(position, color);
+            case "Knight":
+                return new Knight(position, color);
+            case "Rook":
+                return new Rook(position, color);
+            case "Queen":
+                return new Queen(position, color);
+            case "Bishop":
+                return new Bishop(position, color);
+            default:
+                return new King(position, color);
+        }
+    }
+}
+
+
 class InvalidBoardSizeException extends Exception {
     @Override
     public String getMessage() {